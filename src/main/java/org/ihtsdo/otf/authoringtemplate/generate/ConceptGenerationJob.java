@@ -0,0 +1,159 @@
+package org.ihtsdo.otf.authoringtemplate.generate;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Progress of generating concepts from a batch input file in the background.
+ * The file is read and generated a batch of rows at a time so the total number of rows is only known once it has finished.
+ */
+public class ConceptGenerationJob {
+
+	// Only the first errors are kept so that a badly formed file can't make the status very large
+	private static final int MAX_ERRORS = 1000;
+
+	private String jobId;
+	private ConceptGenerationStatus status;
+	private String branchPath;
+	private String templateName;
+	private String errorMsg;
+	private Date createdDate;
+	private Date lastUpdatedDate;
+	private int processedRows;
+	private int failedRows;
+	private int generatedConcepts;
+	private int completedBatches;
+	private List<String> errors;
+
+	public ConceptGenerationJob(String branchPath, String templateName) {
+		this.branchPath = branchPath;
+		this.templateName = templateName;
+		jobId = UUID.randomUUID().toString();
+		createdDate = Calendar.getInstance().getTime();
+		errors = new ArrayList<>();
+	}
+
+	/**
+	 * Updates the progress counters with a finished batch. The rows of a batch with errors are all counted as failed.
+	 */
+	public void recordBatch(int rowCount, int conceptCount, List<String> batchErrors) {
+		processedRows += rowCount;
+		generatedConcepts += conceptCount;
+		if (!batchErrors.isEmpty()) {
+			failedRows += rowCount;
+			for (String error : batchErrors) {
+				if (errors.size() >= MAX_ERRORS) {
+					break;
+				}
+				errors.add(error);
+			}
+		}
+		completedBatches++;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+
+	public ConceptGenerationStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(ConceptGenerationStatus status) {
+		this.status = status;
+	}
+
+	public String getBranchPath() {
+		return branchPath;
+	}
+
+	public void setBranchPath(String branchPath) {
+		this.branchPath = branchPath;
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+
+	public void setTemplateName(String templateName) {
+		this.templateName = templateName;
+	}
+
+	public String getErrorMsg() {
+		return errorMsg;
+	}
+
+	public void setErrorMsg(String errorMsg) {
+		this.errorMsg = errorMsg;
+	}
+
+	public Date getCreatedDate() {
+		return createdDate;
+	}
+
+	public void setCreatedDate(Date createdDate) {
+		this.createdDate = createdDate;
+	}
+
+	public Date getLastUpdatedDate() {
+		return lastUpdatedDate;
+	}
+
+	public void setLastUpdatedDate(Date lastUpdatedDate) {
+		this.lastUpdatedDate = lastUpdatedDate;
+	}
+
+	public int getProcessedRows() {
+		return processedRows;
+	}
+
+	public void setProcessedRows(int processedRows) {
+		this.processedRows = processedRows;
+	}
+
+	public int getFailedRows() {
+		return failedRows;
+	}
+
+	public void setFailedRows(int failedRows) {
+		this.failedRows = failedRows;
+	}
+
+	public int getGeneratedConcepts() {
+		return generatedConcepts;
+	}
+
+	public void setGeneratedConcepts(int generatedConcepts) {
+		this.generatedConcepts = generatedConcepts;
+	}
+
+	public int getCompletedBatches() {
+		return completedBatches;
+	}
+
+	public void setCompletedBatches(int completedBatches) {
+		this.completedBatches = completedBatches;
+	}
+
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	public void setErrors(List<String> errors) {
+		this.errors = errors;
+	}
+
+	@Override
+	public String toString() {
+		return "ConceptGenerationJob [jobId=" + jobId + ", status=" + status + ", branchPath=" + branchPath
+				+ ", templateName=" + templateName + ", processedRows=" + processedRows + ", failedRows=" + failedRows
+				+ ", generatedConcepts=" + generatedConcepts + ", completedBatches=" + completedBatches + "]";
+	}
+}
@@ -0,0 +1,6 @@
+package org.ihtsdo.otf.authoringtemplate.generate;
+
+public enum ConceptGenerationStatus {
+
+	QUEUED, RUNNING, FAILED, COMPLETED_WITH_FAILURE, COMPLETED, INTERRUPTED
+}
@@ -0,0 +1,227 @@
+package org.ihtsdo.otf.authoringtemplate.generate.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.ihtsdo.otf.authoringtemplate.TransformationResourceConfiguration;
+import org.ihtsdo.otf.authoringtemplate.generate.ConceptGenerationJob;
+import org.ihtsdo.otf.authoringtemplate.generate.ConceptGenerationStatus;
+import org.ihtsdo.otf.authoringtemplate.service.TemplateConceptCreateService;
+import org.ihtsdo.otf.authoringtemplate.service.TemplateService;
+import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
+import org.ihtsdo.otf.resourcemanager.ResourceManager;
+import org.ihtsdo.otf.rest.client.terminologyserver.SnowOwlRestClient;
+import org.ihtsdo.otf.rest.exception.ResourceNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.authoringtemplate.domain.ConceptOutline;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs concept generation jobs in the background.
+ * The input file is kept in the job storage and read a batch at a time, and the concepts of each batch are written
+ * to storage as soon as they have been generated, so neither the whole file nor all the concepts are held in memory.
+ */
+@Service
+public class ConceptGenerationJobService {
+
+	private static final String GENERATION = "generation/";
+
+	private static final String ACTIVE_JOBS_JSON = GENERATION + "active-jobs.json";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConceptGenerationJobService.class);
+
+	private final ResourceManager resourceManager;
+
+	private final Gson prettyJson;
+
+	@Autowired
+	private TemplateService templateService;
+
+	@Autowired
+	private TemplateConceptCreateService createService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	public ConceptGenerationJobService(
+			@Autowired TransformationResourceConfiguration transformationResourceConfiguration,
+			@Autowired ResourceLoader cloudResourceLoader) {
+
+		prettyJson = new GsonBuilder().setPrettyPrinting().create();
+		resourceManager = new ResourceManager(transformationResourceConfiguration, cloudResourceLoader);
+	}
+
+	/**
+	 * Stores the input file and queues a new job. The template is checked up front so a missing template fails the request.
+	 */
+	public ConceptGenerationJob createJob(String branchPath, String templateName, InputStream inputStream) throws IOException, ServiceException {
+		templateService.loadOrThrow(templateName);
+		ConceptGenerationJob job = new ConceptGenerationJob(branchPath, templateName);
+		try (OutputStream output = resourceManager.writeResourceStream(getInputPath(job.getJobId()))) {
+			StreamUtils.copy(inputStream, output);
+		}
+		job.setStatus(ConceptGenerationStatus.QUEUED);
+		update(job);
+		setActive(job.getJobId(), true);
+		return job;
+	}
+
+	/**
+	 * Jobs still queued or running according to storage were stopped by the last shutdown, so they are marked as interrupted
+	 * rather than being reported as running forever. Generation doesn't keep a checkpoint, so the file has to be submitted again.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void markInterruptedJobs() {
+		for (String jobId : getActiveJobIds()) {
+			try {
+				ConceptGenerationJob job = getJob(jobId);
+				if (ConceptGenerationStatus.QUEUED == job.getStatus() || ConceptGenerationStatus.RUNNING == job.getStatus()) {
+					job.setStatus(ConceptGenerationStatus.INTERRUPTED);
+					job.setErrorMsg("Interrupted by a service restart after " + job.getCompletedBatches()
+							+ " batches. Submit the file again to generate the remaining concepts.");
+					update(job);
+				}
+				setActive(jobId, false);
+			} catch (ResourceNotFoundException | ServiceException e) {
+				LOGGER.error("Failed to check status of concept generation job {}", jobId, e);
+			}
+		}
+	}
+
+	@Async
+	public void generateAsynchronously(ConceptGenerationJob job, SnowOwlRestClient restClient) throws ServiceException {
+		try {
+			job.setStatus(ConceptGenerationStatus.RUNNING);
+			update(job);
+			try (InputStream input = resourceManager.readResourceStream(getInputPath(job.getJobId()))) {
+				if (input == null) {
+					throw new ResourceNotFoundException("concept generation input", getInputPath(job.getJobId()));
+				}
+				createService.generateConceptsInBatches(job.getBranchPath(), job.getTemplateName(), input, restClient,
+						(batchIndex, rowCount, concepts, errors) -> {
+							writeBatch(job, batchIndex, concepts);
+							job.recordBatch(rowCount, concepts.size(), errors);
+							update(job);
+						});
+			}
+			job.setStatus(job.getFailedRows() == 0 ? ConceptGenerationStatus.COMPLETED : ConceptGenerationStatus.COMPLETED_WITH_FAILURE);
+		} catch (Exception e) {
+			LOGGER.error("Concept generation job {} failed.", job.getJobId(), e);
+			job.setStatus(ConceptGenerationStatus.FAILED);
+			job.setErrorMsg(e.getMessage());
+		} finally {
+			update(job);
+			setActive(job.getJobId(), false);
+		}
+	}
+
+	public ConceptGenerationJob getJob(String jobId) {
+		try (InputStream input = resourceManager.readResourceStream(getFilePath(jobId, "status.json"))) {
+			if (input == null) {
+				throw new ResourceNotFoundException("concept generation job", jobId);
+			}
+			try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+				return prettyJson.fromJson(reader, ConceptGenerationJob.class);
+			}
+		} catch (IOException e) {
+			throw new ResourceNotFoundException("Can't find any concept generation job with id " + jobId, e);
+		}
+	}
+
+	/**
+	 * Streams the concepts generated so far, one JSON concept outline per line, in the order of the input rows.
+	 */
+	public void writeResults(String jobId, OutputStream outputStream) throws IOException {
+		ConceptGenerationJob job = getJob(jobId);
+		for (int batchIndex = 0; batchIndex < job.getCompletedBatches(); batchIndex++) {
+			try (InputStream input = resourceManager.readResourceStream(getBatchPath(jobId, batchIndex))) {
+				if (input == null) {
+					throw new ResourceNotFoundException("concept generation batch", getBatchPath(jobId, batchIndex));
+				}
+				StreamUtils.copy(input, outputStream);
+			}
+		}
+		outputStream.flush();
+	}
+
+	public void update(ConceptGenerationJob job) throws ServiceException {
+		job.setLastUpdatedDate(Calendar.getInstance().getTime());
+		LOGGER.info("Concept generation job {} for branch {} is {}", job.getJobId(), job.getBranchPath(), job.getStatus());
+		try (OutputStream output = resourceManager.writeResourceStream(getFilePath(job.getJobId(), "status.json"));
+			Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+			writer.write(prettyJson.toJson(job));
+		} catch (IOException e) {
+			throw new ServiceException("Failed to update concept generation job status " + job, e);
+		}
+	}
+
+	/**
+	 * @return ids of jobs which have been created but haven't finished, including those stopped by a restart.
+	 */
+	synchronized Set<String> getActiveJobIds() {
+		try (InputStream input = resourceManager.readResourceStream(ACTIVE_JOBS_JSON)) {
+			if (input == null) {
+				return new HashSet<>();
+			}
+			try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+				Set<String> ids = prettyJson.fromJson(reader, new TypeToken<Set<String>>(){}.getType());
+				return ids != null ? ids : new HashSet<>();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("No active concept generation jobs recorded.", e);
+			return new HashSet<>();
+		}
+	}
+
+	private synchronized void setActive(String jobId, boolean active) throws ServiceException {
+		Set<String> ids = getActiveJobIds();
+		boolean changed = active ? ids.add(jobId) : ids.remove(jobId);
+		if (changed) {
+			try (OutputStream output = resourceManager.writeResourceStream(ACTIVE_JOBS_JSON);
+				Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+				prettyJson.toJson(ids, writer);
+			} catch (IOException e) {
+				throw new ServiceException("Failed to record active concept generation jobs", e);
+			}
+		}
+	}
+
+	private void writeBatch(ConceptGenerationJob job, int batchIndex, List<ConceptOutline> concepts) throws ServiceException {
+		try (OutputStream output = resourceManager.writeResourceStream(getBatchPath(job.getJobId(), batchIndex));
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+			for (ConceptOutline concept : concepts) {
+				writer.write(objectMapper.writeValueAsString(concept));
+				writer.newLine();
+			}
+		} catch (IOException e) {
+			throw new ServiceException("Failed to write batch " + batchIndex + " of concept generation job " + job.getJobId(), e);
+		}
+	}
+
+	private static String getInputPath(String jobId) {
+		return getFilePath(jobId, "input.tsv");
+	}
+
+	private static String getBatchPath(String jobId, int batchIndex) {
+		return getFilePath(jobId, "batches/" + batchIndex + ".ndjson");
+	}
+
+	private static String getFilePath(String jobId, String relativePath) {
+		return GENERATION + jobId + "/" + relativePath;
+	}
+}
@@ -1,19 +1,26 @@
 package org.ihtsdo.otf.authoringtemplate.rest;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.ihtsdo.otf.authoringtemplate.generate.ConceptGenerationJob;
+import org.ihtsdo.otf.authoringtemplate.generate.service.ConceptGenerationJobService;
 import org.ihtsdo.otf.authoringtemplate.rest.util.ControllerHelper;
+import org.ihtsdo.otf.authoringtemplate.service.TemplateArchiveFormat;
 import org.ihtsdo.otf.authoringtemplate.service.TemplateConceptCreateService;
 import org.ihtsdo.otf.authoringtemplate.service.TemplateConceptSearchService;
 import org.ihtsdo.otf.authoringtemplate.service.TemplateService;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.authoringtemplate.transform.TemplateTransformRequest;
 import org.ihtsdo.otf.authoringtemplate.transform.TemplateTransformation;
-import org.ihtsdo.otf.authoringtemplate.transform.TransformationResult;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationResultPage;
 import org.ihtsdo.otf.authoringtemplate.transform.TransformationStatus;
 import org.ihtsdo.otf.authoringtemplate.transform.service.TemplateConceptTransformService;
 import org.ihtsdo.otf.authoringtemplate.transform.service.TemplateTransformationResultService;
@@ -35,8 +42,12 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.kaicode.rest.util.branchpathrewrite.BranchPathUriUtil;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 @RestController
 public class TemplateController {
 
@@ -57,6 +68,12 @@ public class TemplateController {
 	
 	@Autowired
 	private TemplateTransformationResultService resultService;
+
+	@Autowired
+	private ConceptGenerationJobService generationJobService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
 	
 	@RequestMapping(value = "/templates", method = RequestMethod.POST, produces = "application/json")
 	@ResponseBody
@@ -86,6 +103,26 @@ public class TemplateController {
 				descendantOf, ancestorOf);
 	}
 
+	@RequestMapping(value = "/templates/import", method = RequestMethod.POST, consumes = "application/x-ndjson", produces = "application/json")
+	@ResponseBody
+	public Set<String> importTemplates(HttpServletRequest request) throws IOException, ServiceException {
+		return templateService.importTemplates(request.getInputStream(), TemplateArchiveFormat.NDJSON);
+	}
+
+	@RequestMapping(value = "/templates/import", method = RequestMethod.POST, consumes = "application/zip", produces = "application/json")
+	@ResponseBody
+	public Set<String> importTemplateArchive(HttpServletRequest request) throws IOException, ServiceException {
+		return templateService.importTemplates(request.getInputStream(), TemplateArchiveFormat.ZIP);
+	}
+
+	@RequestMapping(value = "/templates/export", method = RequestMethod.GET)
+	public void exportTemplates(@RequestParam(defaultValue = "NDJSON") TemplateArchiveFormat format,
+								HttpServletResponse response) throws IOException {
+
+		response.setContentType(TemplateArchiveFormat.ZIP == format ? "application/zip" : "application/x-ndjson; charset=utf-8");
+		templateService.exportTemplates(response.getOutputStream(), format);
+	}
+
 	@RequestMapping(value = "/templates/{templateName}", method = RequestMethod.GET, produces = "application/json")
 	@ResponseBody
 	public ConceptTemplate getTemplate(@PathVariable String templateName) throws ResourceNotFoundException, IOException {
@@ -113,6 +150,30 @@ public class TemplateController {
 		return createService.generateConcepts(BranchPathUriUtil.decodePath(branchPath), templateName, tsvFile.getInputStream());
 	}
 
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/{branchPath}/templates/{templateName}/generate/jobs", method = RequestMethod.POST, consumes = "multipart/form-data")
+	public ResponseEntity createConceptGenerationJob(@PathVariable String branchPath,
+												 @PathVariable String templateName,
+												 @RequestParam("tsvFile") MultipartFile tsvFile,
+												 UriComponentsBuilder uriComponentsBuilder) throws IOException, ServiceException {
+		ConceptGenerationJob job = generationJobService.createJob(BranchPathUriUtil.decodePath(branchPath), templateName, tsvFile.getInputStream());
+		generationJobService.generateAsynchronously(job, terminologyClientFactory.getClient());
+		return ResponseEntity.created(uriComponentsBuilder.path("/templates/generate/jobs/{jobId}")
+				.buildAndExpand(job.getJobId()).toUri()).build();
+	}
+
+	@RequestMapping(value = "/templates/generate/jobs/{jobId}", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public ConceptGenerationJob getConceptGenerationJob(@PathVariable String jobId) {
+		return generationJobService.getJob(jobId);
+	}
+
+	@RequestMapping(value = "/templates/generate/jobs/{jobId}/results", method = RequestMethod.GET, produces = "application/x-ndjson")
+	public void getConceptGenerationResults(@PathVariable String jobId, HttpServletResponse response) throws IOException {
+		response.setContentType("application/x-ndjson; charset=utf-8");
+		generationJobService.writeResults(jobId, response.getOutputStream());
+	}
+
 	@RequestMapping(value = "/templates/reload", method = RequestMethod.POST)
 	public void reloadCache() throws IOException, ServiceException {
 		templateService.reloadCache();
@@ -127,9 +188,32 @@ public class TemplateController {
 									  @RequestParam(defaultValue="true") boolean stated) throws ServiceException {
 		return searchService.searchConceptsByTemplate(templateName, BranchPathUriUtil.decodePath(branchPath), logicalMatch, lexicalMatch, stated);
 	}
-	
-	
-	
+
+	@RequestMapping(value = "/{branchPath}/templates/{templateName}/concepts/stream", method = RequestMethod.GET, produces = "application/x-ndjson")
+	public void streamConcepts(@PathVariable String branchPath,
+							   @PathVariable String templateName,
+							   @RequestParam Boolean logicalMatch,
+							   @RequestParam(required=false) Boolean lexicalMatch,
+							   @RequestParam(defaultValue="true") boolean stated,
+							   HttpServletResponse response) throws IOException, ServiceException {
+
+		response.setContentType("application/x-ndjson; charset=utf-8");
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), UTF_8));
+		// One JSON string per line, flushed after each chunk of matching concepts
+		searchService.searchConceptsByTemplate(templateName, BranchPathUriUtil.decodePath(branchPath), logicalMatch, lexicalMatch, stated, conceptIds -> {
+			try {
+				for (String conceptId : conceptIds) {
+					writer.write(objectMapper.writeValueAsString(conceptId));
+					writer.newLine();
+				}
+				writer.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		writer.flush();
+	}
+
 	@SuppressWarnings("rawtypes")
 	@RequestMapping(value = "/{branchPath}/templates/transform", method = RequestMethod.POST)
 	public ResponseEntity createTemplateTransformation(@PathVariable String branchPath,
@@ -173,9 +257,29 @@ public class TemplateController {
 		return resultService.getTemplateTransformation(transformationId);
 	}
 	
-	@RequestMapping(value = "/templates/transform/{transformationId}/results/", method = RequestMethod.GET)
+	@RequestMapping(value = "/templates/transform/{transformationId}/resume", method = RequestMethod.POST)
+	@ResponseBody
+	public TemplateTransformation resumeTemplateTransformation(@PathVariable String transformationId) throws ServiceException {
+		TemplateTransformation transformation = transformService.prepareResume(transformationId);
+		SnowOwlRestClient restClient = terminologyClientFactory.getClient();
+		transformService.resumeAsynchronously(transformation, restClient);
+		return transformation;
+	}
+
+	@RequestMapping(value = "/templates/transform/{transformationId}/results/", method = RequestMethod.GET, produces = "application/json")
+	public void getTransformationResults(@PathVariable String transformationId, HttpServletResponse response) throws ServiceException, IOException {
+		response.setContentType("application/json; charset=utf-8");
+		resultService.writeResult(transformationId, response.getOutputStream());
+	}
+
+	@RequestMapping(value = "/templates/transform/{transformationId}/results/page", method = RequestMethod.GET, produces = "application/json")
 	@ResponseBody
-	public TransformationResult getTransformationResults(@PathVariable String transformationId) throws ServiceException {
-		return resultService.getResult(transformationId);
+	public TransformationResultPage getTransformationResultPage(@PathVariable String transformationId,
+																@RequestParam(defaultValue = "0") int offset,
+																@RequestParam(defaultValue = "100") int limit,
+																@RequestParam(defaultValue = "false") boolean failuresOnly,
+																@RequestParam(required = false) Set<String> conceptIds,
+																@RequestParam(defaultValue = "false") boolean changedDescriptionsOnly) throws ServiceException {
+		return resultService.getResultPage(transformationId, offset, limit, failuresOnly, conceptIds, changedDescriptionsOnly);
 	}
 }
@@ -0,0 +1,112 @@
+package org.ihtsdo.otf.authoringtemplate.service;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.snomed.authoringtemplate.domain.ConceptTemplate;
+import org.snomed.authoringtemplate.domain.DescriptionType;
+import org.snomed.authoringtemplate.domain.logical.Attribute;
+import org.snomed.authoringtemplate.domain.logical.LogicalTemplate;
+
+/**
+ * A concept template together with its parsed logical template and the lookups derived from it.
+ * Instances are built once when a template is cached or saved so request paths don't need to parse again.
+ */
+public class CompiledTemplate {
+
+	private final ConceptTemplate template;
+	private final int version;
+	private final String logicalTemplateString;
+	private final LogicalTemplate logicalTemplate;
+	private final Map<String, Attribute> slotToAttributeMap;
+	private final Map<String, Attribute> mandatorySlotToAttributeMap;
+	private final Set<String> attributeTypes;
+	private final Map<Pattern, Set<String>> fsnPatterns;
+	private final Map<Pattern, Set<String>> synonymPatterns;
+	private final ExactMatchEvaluator exactMatchEvaluator;
+	private volatile GenerationPlan generationPlan;
+
+	public CompiledTemplate(ConceptTemplate template, LogicalTemplate logicalTemplate) {
+		this.template = template;
+		this.version = template.getVersion();
+		this.logicalTemplateString = template.getLogicalTemplate();
+		this.logicalTemplate = logicalTemplate;
+		this.slotToAttributeMap = Collections.unmodifiableMap(TemplateUtil.getSlotToAttributeMap(logicalTemplate, true));
+		this.mandatorySlotToAttributeMap = Collections.unmodifiableMap(TemplateUtil.getSlotToAttributeMap(logicalTemplate, false));
+		this.attributeTypes = Collections.unmodifiableSet(TemplateUtil.getAttributeTypes(logicalTemplate));
+		this.fsnPatterns = Collections.unmodifiableMap(TemplateUtil.compilePatterns(TemplateUtil.getTermTemplates(template, DescriptionType.FSN)));
+		this.synonymPatterns = Collections.unmodifiableMap(TemplateUtil.compilePatterns(TemplateUtil.getTermTemplates(template, DescriptionType.SYNONYM)));
+		this.exactMatchEvaluator = new ExactMatchEvaluator(logicalTemplate.getAttributeGroups(), logicalTemplate.getUngroupedAttributes());
+	}
+
+	/**
+	 * @return true if this was compiled from the same version of the given template.
+	 */
+	public boolean isCompiledFrom(ConceptTemplate conceptTemplate) {
+		return version == conceptTemplate.getVersion()
+				&& Objects.equals(logicalTemplateString, conceptTemplate.getLogicalTemplate());
+	}
+
+	public ConceptTemplate getTemplate() {
+		return template;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public LogicalTemplate getLogicalTemplate() {
+		return logicalTemplate;
+	}
+
+	/**
+	 * @return slot name to attribute map including optional attributes.
+	 */
+	public Map<String, Attribute> getSlotToAttributeMap() {
+		return slotToAttributeMap;
+	}
+
+	/**
+	 * @return slot name to attribute map excluding optional attributes.
+	 */
+	public Map<String, Attribute> getMandatorySlotToAttributeMap() {
+		return mandatorySlotToAttributeMap;
+	}
+
+	public Set<String> getAttributeTypes() {
+		return attributeTypes;
+	}
+
+	/**
+	 * @return compiled FSN term patterns mapped to the term slots they contain.
+	 */
+	public Map<Pattern, Set<String>> getFsnPatterns() {
+		return fsnPatterns;
+	}
+
+	/**
+	 * @return compiled synonym term patterns mapped to the term slots they contain.
+	 */
+	public Map<Pattern, Set<String>> getSynonymPatterns() {
+		return synonymPatterns;
+	}
+
+	public ExactMatchEvaluator getExactMatchEvaluator() {
+		return exactMatchEvaluator;
+	}
+
+	/**
+	 * @return the plan for generating concepts from this template, built on first use because most templates are only searched.
+	 */
+	public GenerationPlan getGenerationPlan() {
+		GenerationPlan plan = generationPlan;
+		if (plan == null) {
+			plan = new GenerationPlan(template);
+			generationPlan = plan;
+		}
+		return plan;
+	}
+}
@@ -0,0 +1,160 @@
+package org.ihtsdo.otf.authoringtemplate.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.AxiomPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.RelationshipPojo;
+import org.snomed.authoringtemplate.domain.logical.Attribute;
+import org.snomed.authoringtemplate.domain.logical.AttributeGroup;
+
+/**
+ * Checks whether concepts match the attribute structure of a logical template exactly.
+ * The attribute types used by the template are given small ordinals so that both the template's groups and
+ * each concept's relationship groups can be held as long bitmasks. Types not used by the template share one extra bit.
+ * Instances are immutable and can be shared between threads.
+ */
+public class ExactMatchEvaluator {
+
+	public static final int MISSING_MANDATORY_ATTRIBUTE = 1;
+
+	public static final int EXTRA_ATTRIBUTE = 2;
+
+	private static final int MAX_TYPES = 63;
+
+	private static final long UNKNOWN_TYPE = 1L << MAX_TYPES;
+
+	private final Map<String, Integer> typeOrdinals = new HashMap<>();
+
+	private final long[] allowedMasks;
+
+	private final long[] mandatoryMasks;
+
+	public ExactMatchEvaluator(List<AttributeGroup> attributeGroups, List<Attribute> unGroupedAttributes) {
+		allowedMasks = new long[attributeGroups.size() + 1];
+		long[] mandatory = new long[attributeGroups.size() + 1];
+		int mandatoryCount = 0;
+		int i = 0;
+		for (AttributeGroup group : attributeGroups) {
+			long groupMask = 0;
+			long mandatoryGroupMask = 0;
+			for (Attribute attribute : group.getAttributes()) {
+				long bit = internType(attribute.getType());
+				groupMask |= bit;
+				if ("1".equals(attribute.getCardinalityMin())) {
+					mandatoryGroupMask |= bit;
+				}
+			}
+			allowedMasks[i++] = groupMask;
+			if ("1".equals(group.getCardinalityMin())) {
+				mandatory[mandatoryCount++] = mandatoryGroupMask;
+			}
+		}
+		long ungrouped = internType(Constants.IS_A);
+		long mandatoryUngrouped = ungrouped;
+		for (Attribute attribute : unGroupedAttributes) {
+			long bit = internType(attribute.getType());
+			ungrouped |= bit;
+			if ("1".equals(attribute.getCardinalityMin())) {
+				mandatoryUngrouped |= bit;
+			}
+		}
+		allowedMasks[i] = ungrouped;
+		mandatory[mandatoryCount++] = mandatoryUngrouped;
+		mandatoryMasks = Arrays.copyOf(mandatory, mandatoryCount);
+	}
+
+	private long internType(String type) {
+		Integer ordinal = typeOrdinals.get(type);
+		if (ordinal == null) {
+			if (typeOrdinals.size() == MAX_TYPES) {
+				throw new IllegalArgumentException("Logical template uses more than " + MAX_TYPES + " distinct attribute types");
+			}
+			ordinal = typeOrdinals.size();
+			typeOrdinals.put(type, ordinal);
+		}
+		return 1L << ordinal;
+	}
+
+	/**
+	 * @return 0 when the concept matches exactly, otherwise a combination of {@link #MISSING_MANDATORY_ATTRIBUTE} and {@link #EXTRA_ATTRIBUTE}.
+	 */
+	public int evaluate(ConceptPojo concept, boolean stated) {
+		long[] groupMasks = new long[8];
+		if (stated) {
+			if (concept.getClassAxioms() != null) {
+				for (AxiomPojo axiom : concept.getClassAxioms()) {
+					if (axiom.isActive()) {
+						for (RelationshipPojo relationship : axiom.getRelationships()) {
+							groupMasks = addRelationship(groupMasks, relationship);
+						}
+					}
+				}
+			}
+		} else if (concept.getRelationships() != null) {
+			for (RelationshipPojo relationship : concept.getRelationships()) {
+				if (relationship.isActive() && Constants.INFERRED.equals(relationship.getCharacteristicType())) {
+					groupMasks = addRelationship(groupMasks, relationship);
+				}
+			}
+		}
+		int result = 0;
+		if (missingMandatoryAttribute(groupMasks)) {
+			result |= MISSING_MANDATORY_ATTRIBUTE;
+		}
+		if (containExtraAttribute(groupMasks)) {
+			result |= EXTRA_ATTRIBUTE;
+		}
+		return result;
+	}
+
+	private long[] addRelationship(long[] groupMasks, RelationshipPojo relationship) {
+		int groupId = relationship.getGroupId();
+		if (groupId >= groupMasks.length) {
+			groupMasks = Arrays.copyOf(groupMasks, Math.max(groupId + 1, groupMasks.length * 2));
+		}
+		Integer ordinal = typeOrdinals.get(relationship.getType().getConceptId());
+		groupMasks[groupId] |= ordinal != null ? 1L << ordinal : UNKNOWN_TYPE;
+		return groupMasks;
+	}
+
+	private boolean missingMandatoryAttribute(long[] groupMasks) {
+		// Every mandatory type set must be covered by at least one relationship group
+		for (long mandatory : mandatoryMasks) {
+			boolean isFound = false;
+			for (long groupMask : groupMasks) {
+				if (groupMask != 0 && (groupMask & mandatory) == mandatory) {
+					isFound = true;
+					break;
+				}
+			}
+			if (!isFound) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean containExtraAttribute(long[] groupMasks) {
+		// Every relationship group must fit inside one of the template's groups
+		for (long groupMask : groupMasks) {
+			if (groupMask == 0) {
+				continue;
+			}
+			boolean isFound = false;
+			for (long allowed : allowedMasks) {
+				if ((groupMask & ~allowed) == 0) {
+					isFound = true;
+					break;
+				}
+			}
+			if (!isFound) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
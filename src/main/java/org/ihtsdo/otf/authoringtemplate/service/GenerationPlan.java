@@ -0,0 +1,136 @@
+package org.ihtsdo.otf.authoringtemplate.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.snomed.authoringtemplate.domain.Axiom;
+import org.snomed.authoringtemplate.domain.ConceptMini;
+import org.snomed.authoringtemplate.domain.ConceptOutline;
+import org.snomed.authoringtemplate.domain.ConceptTemplate;
+import org.snomed.authoringtemplate.domain.Description;
+import org.snomed.authoringtemplate.domain.Relationship;
+import org.snomed.authoringtemplate.domain.SimpleSlot;
+
+/**
+ * How to expand one row of a batch input file into a concept outline, worked out once per template version.
+ * Slot names and references are resolved to input column indexes up front so each row only needs index lookups,
+ * and the template descriptions are kept as read only skeletons because the lexical transformation copies them anyway.
+ */
+public class GenerationPlan {
+
+	// Column index of a relationship with a fixed target
+	private static final int FIXED = -2;
+
+	// Column index of a slot which isn't given in the input file
+	private static final int NO_COLUMN = -1;
+
+	private final List<SimpleSlot> slotsRequiringInput;
+	private final List<String> slotNames;
+	private final int additionalSlotCount;
+	private final List<RelationshipStep[]> axiomSteps;
+	private final List<Description> descriptionSkeletons;
+
+	public GenerationPlan(ConceptTemplate template) {
+		ConceptOutline conceptOutline = template.getConceptOutline();
+		List<Relationship> relationships = conceptOutline.getClassAxioms().stream().findFirst().get().getRelationships();
+		slotsRequiringInput = Collections.unmodifiableList(TemplateUtil.getSlotsRequiringInput(relationships));
+
+		List<String> names = slotsRequiringInput.stream()
+				.map(SimpleSlot::getSlotName)
+				.filter(Objects::nonNull)
+				.collect(Collectors.toList());
+		names.addAll(template.getAdditionalSlots());
+		slotNames = Collections.unmodifiableList(names);
+		additionalSlotCount = template.getAdditionalSlots().size();
+
+		axiomSteps = new ArrayList<>();
+		for (Axiom axiom : conceptOutline.getClassAxioms()) {
+			List<Relationship> axiomRelationships = axiom.getRelationships();
+			RelationshipStep[] steps = new RelationshipStep[axiomRelationships.size()];
+			for (int i = 0; i < steps.length; i++) {
+				Relationship relationship = axiomRelationships.get(i);
+				SimpleSlot targetSlot = relationship.getTargetSlot();
+				int columnIndex = FIXED;
+				if (targetSlot != null) {
+					columnIndex = slotNames.indexOf(targetSlot.getSlotName() != null ? targetSlot.getSlotName() : targetSlot.getSlotReference());
+				}
+				steps[i] = new RelationshipStep(relationship.clone(), columnIndex, TemplateUtil.isOptional(relationship));
+			}
+			axiomSteps.add(steps);
+		}
+
+		List<Description> skeletons = new ArrayList<>();
+		conceptOutline.getDescriptions().forEach(description -> skeletons.add(description.clone()));
+		descriptionSkeletons = Collections.unmodifiableList(skeletons);
+	}
+
+	/**
+	 * @return a new concept outline with the relationships of the template and slot targets taken from the given row.
+	 * Optional slots left empty are omitted. Descriptions are not added.
+	 */
+	public ConceptOutline expand(List<List<String>> slotColumnValues, int row) {
+		ConceptOutline conceptOutline = new ConceptOutline();
+		for (RelationshipStep[] steps : axiomSteps) {
+			List<Relationship> relationships = new ArrayList<>(steps.length);
+			for (RelationshipStep step : steps) {
+				if (step.columnIndex == FIXED) {
+					relationships.add(step.relationship.clone());
+				} else {
+					String slotValue = step.columnIndex == NO_COLUMN ? "" : slotColumnValues.get(step.columnIndex).get(row);
+					if (!step.optional || !slotValue.trim().isEmpty()) {
+						relationships.add(step.relationship.clone().setTarget(new ConceptMini(slotValue)));
+					}
+				}
+			}
+			Axiom generated = new Axiom();
+			generated.setRelationships(relationships);
+			conceptOutline.addAxiom(generated);
+		}
+		return conceptOutline;
+	}
+
+	public List<SimpleSlot> getSlotsRequiringInput() {
+		return slotsRequiringInput;
+	}
+
+	/**
+	 * @return names of the slots with an input column, followed by the additional slots.
+	 */
+	public List<String> getSlotNames() {
+		return slotNames;
+	}
+
+	public int getAdditionalSlotCount() {
+		return additionalSlotCount;
+	}
+
+	/**
+	 * @return number of leading columns holding concept identifiers rather than additional slot terms.
+	 */
+	public int getConceptColumnCount() {
+		return slotNames.size() - additionalSlotCount;
+	}
+
+	/**
+	 * @return template descriptions shared by all generated concepts which must not be modified.
+	 */
+	public List<Description> getDescriptionSkeletons() {
+		return descriptionSkeletons;
+	}
+
+	private static final class RelationshipStep {
+
+		private final Relationship relationship;
+		private final int columnIndex;
+		private final boolean optional;
+
+		private RelationshipStep(Relationship relationship, int columnIndex, boolean optional) {
+			this.relationship = relationship;
+			this.columnIndex = columnIndex;
+			this.optional = optional;
+		}
+	}
+}
@@ -1,20 +1,40 @@
 package org.ihtsdo.otf.authoringtemplate.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
+/**
+ * Stores objects as JSON files in a directory.
+ * Files are replaced atomically: the new content is written to a temporary file, forced to disk and renamed over the old file,
+ * so a crash leaves either the previous or the new content but never a truncated file.
+ */
 public class JsonStore {
 
 	private static final String EXTENSION = ".json";
 
+	private static final String TEMP_EXTENSION = ".tmp";
+
 	private static final FilenameFilter FILENAME_FILTER = (dir, name) -> name.endsWith(EXTENSION);
 
+	private static final FilenameFilter TEMP_FILENAME_FILTER = (dir, name) -> name.endsWith(TEMP_EXTENSION);
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
 	private File storeDirectory;
 
 	private final ObjectMapper objectMapper;
@@ -27,6 +47,12 @@ public class JsonStore {
 				throw new RuntimeException("storeDirectory " + storeDirectory.getAbsolutePath() + " could not be created.");
 			}
 		}
+		// Left behind by writes which didn't complete, the original files are intact
+		for (File temp : storeDirectory.listFiles(TEMP_FILENAME_FILTER)) {
+			if (!temp.delete()) {
+				logger.warn("Failed to delete incomplete write {}", temp.getAbsolutePath());
+			}
+		}
 	}
 
 	public <T> T load(String name, Class<T> clazz) throws IOException {
@@ -38,8 +64,76 @@ public class JsonStore {
 	}
 
 	public void save(String name, Object object) throws IOException {
-		try (final FileWriter writer = new FileWriter(getFile(name))) {
-			objectMapper.writeValue(writer, object);
+		File temp = writeTemp(name, toJson(object));
+		try {
+			Files.move(temp.toPath(), getFile(name).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+		syncDirectory();
+	}
+
+	/**
+	 * Saves several objects as one group commit. Every file is written and forced to disk first,
+	 * then all are renamed into place and the directory is synced once for the whole group.
+	 * A failure part way through can leave some of the objects saved, but each file holds either its old or its new content.
+	 */
+	public void saveAll(Map<String, ?> objects) throws IOException {
+		Map<String, byte[]> json = new LinkedHashMap<>();
+		for (Map.Entry<String, ?> entry : objects.entrySet()) {
+			json.put(entry.getKey(), toJson(entry.getValue()));
+		}
+		saveAllJson(json);
+	}
+
+	/**
+	 * As {@link #saveAll(Map)} for objects already serialized with {@link #toJson(Object)}.
+	 */
+	public void saveAllJson(Map<String, byte[]> json) throws IOException {
+		Map<File, File> written = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<String, byte[]> entry : json.entrySet()) {
+				written.put(writeTemp(entry.getKey(), entry.getValue()), getFile(entry.getKey()));
+			}
+			for (Map.Entry<File, File> entry : written.entrySet()) {
+				Files.move(entry.getKey().toPath(), entry.getValue().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			for (File temp : written.keySet()) {
+				Files.deleteIfExists(temp.toPath());
+			}
+		}
+		syncDirectory();
+	}
+
+	/**
+	 * @return the object as it would be saved, for callers which need to snapshot an object before changing it.
+	 */
+	public byte[] toJson(Object object) throws IOException {
+		return objectMapper.writeValueAsBytes(object);
+	}
+
+	private File writeTemp(String name, byte[] json) throws IOException {
+		// Unique so that concurrent saves of the same name don't write into each other's file
+		File temp = new File(storeDirectory, name + EXTENSION + "." + UUID.randomUUID() + TEMP_EXTENSION);
+		try (FileOutputStream output = new FileOutputStream(temp)) {
+			output.write(json);
+			output.getFD().sync();
+		} catch (IOException e) {
+			Files.deleteIfExists(temp.toPath());
+			throw e;
+		}
+		return temp;
+	}
+
+	/**
+	 * Makes completed renames durable. Some platforms can't open a directory for syncing, renames are still atomic there.
+	 */
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(storeDirectory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			logger.debug("Unable to sync directory {}", storeDirectory.getAbsolutePath(), e);
 		}
 	}
 
@@ -51,6 +145,15 @@ public class JsonStore {
 		return all;
 	}
 
+	public Set<String> listNames() {
+		Set<String> names = new HashSet<>();
+		for (File file : storeDirectory.listFiles(FILENAME_FILTER)) {
+			String fileName = file.getName();
+			names.add(fileName.substring(0, fileName.length() - EXTENSION.length()));
+		}
+		return names;
+	}
+
 	private File getFile(String name) {
 		return new File(storeDirectory, name + EXTENSION);
 	}
@@ -1,5 +1,7 @@
 package org.ihtsdo.otf.authoringtemplate.service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang.StringUtils;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
@@ -22,33 +24,66 @@ public class LexicalTemplateTransformService {
 	private static final String TERM_SLOT_INDICATOR = "$";
 	private static final Logger LOGGER = LoggerFactory.getLogger(LexicalTemplateTransformService.class);
 
+	// Slot value terms after the parts of a lexical template are removed, keyed by description type, term, case significance and parts removed.
+	// The key holds everything the result depends on so entries stay correct across template versions and branches.
+	private static final Cache<List<Object>, String> RESOLVED_SLOT_VALUES = CacheBuilder.newBuilder()
+			.maximumSize(50000)
+			.recordStats()
+			.build();
+
+	// Shared by every caller so it is registered for monitoring once, by TemplateService
+	static Cache<List<Object>, String> getResolvedSlotValuesCache() {
+		return RESOLVED_SLOT_VALUES;
+	}
+
 	public static List<Description> transformDescriptions(List<LexicalTemplate> lexicalTemplates,
 			List<Description> descriptions, Map<String, Set<DescriptionPojo>> slotValueMap) throws ServiceException {
 		
-		Map<String, LexicalTemplate> lexicalTemplateMap = new HashMap<>();
-		for (LexicalTemplate template : lexicalTemplates) {
-			lexicalTemplateMap.put(template.getName(), template);
-		}
-		
 		Map<String, DescriptionPojo> slotFsnValueMap = new HashMap<>();
-		for (String slot : slotValueMap.keySet()) {
-			DescriptionPojo fsnPojo = slotValueMap.get(slot).stream()
-					.filter(DescriptionPojo::isActive)
-					.filter(v -> DescriptionType.FSN.name().equals(v.getType()))
-					.findFirst().get();
-			slotFsnValueMap.put(slot, fsnPojo);
-		}
 		Map<String, List<DescriptionPojo>> slotPtValueMap = new HashMap<>();
 		for (String slot : slotValueMap.keySet()) {
-			List<DescriptionPojo> ptPojos = slotValueMap.get(slot).stream()
-					.filter(DescriptionPojo::isActive)
-					.filter(v -> DescriptionType.SYNONYM.name().equals(v.getType()))
-					.filter(v -> v.getAcceptabilityMap().values().contains(Constants.PREFERRED))
-					.collect(Collectors.toList());
-			slotPtValueMap.put(slot, ptPojos);
+			DescriptionPojo fsn = getActiveFsn(slotValueMap.get(slot));
+			if (fsn == null && !slotValueMap.get(slot).isEmpty()) {
+				String conceptId = slotValueMap.get(slot).iterator().next().getConceptId();
+				throw new ServiceException(String.format("Slot %s value %s has no active FSN", slot, conceptId));
+			}
+			slotFsnValueMap.put(slot, fsn);
+			slotPtValueMap.put(slot, getActivePreferredTerms(slotValueMap.get(slot)));
+		}
+		return transformDescriptions(lexicalTemplates, descriptions, slotFsnValueMap, slotPtValueMap);
+	}
+
+	/**
+	 * Transforms using FSNs and preferred terms of the slot values which have already been picked out,
+	 * for callers reusing them across many concepts.
+	 */
+	public static List<Description> transformDescriptions(List<LexicalTemplate> lexicalTemplates, List<Description> descriptions,
+			Map<String, DescriptionPojo> slotFsnValueMap, Map<String, List<DescriptionPojo>> slotPtValueMap) throws ServiceException {
+
+		Map<String, LexicalTemplate> lexicalTemplateMap = new HashMap<>();
+		for (LexicalTemplate template : lexicalTemplates) {
+			lexicalTemplateMap.put(template.getName(), template);
 		}
 		return performTransformation(descriptions, slotFsnValueMap, slotPtValueMap, lexicalTemplateMap);
 	}
+
+	/**
+	 * @return the active FSN or null when the concept has none.
+	 */
+	public static DescriptionPojo getActiveFsn(Set<DescriptionPojo> descriptions) {
+		return descriptions.stream()
+				.filter(DescriptionPojo::isActive)
+				.filter(v -> DescriptionType.FSN.name().equals(v.getType()))
+				.findFirst().orElse(null);
+	}
+
+	public static List<DescriptionPojo> getActivePreferredTerms(Set<DescriptionPojo> descriptions) {
+		return descriptions.stream()
+				.filter(DescriptionPojo::isActive)
+				.filter(v -> DescriptionType.SYNONYM.name().equals(v.getType()))
+				.filter(v -> v.getAcceptabilityMap().values().contains(Constants.PREFERRED))
+				.collect(Collectors.toList());
+	}
 	
 	private static List<Description> performTransformation(List<Description> descriptions,
 			Map<String, DescriptionPojo> slotFsnValueMap,
@@ -76,6 +111,9 @@ public class LexicalTemplateTransformService {
 				if (template == null) {
 					// Additional slot
 					fsnPojo = slotFsnValueMap.get(slotName); 
+					if (fsnPojo == null) {
+						throw new ServiceException("No active FSN found for additional slot " + slotName);
+					}
 					String slotValue = TemplateUtil.getDescriptionFromFSN(fsnPojo);
 					term = term.replace(termSlot, slotValue);
 					termAndCaseSignificanceMap.put(slotValue, fsnPojo.getCaseSignificance());
@@ -158,15 +196,7 @@ public class LexicalTemplateTransformService {
 			if (isAdditionalTermReplacementRequired(template, ptPojo.getConceptId())) {
 				term = performTermReplacementWithSlotValuesMatched(term, template);
 			} else {
-				String slotValue = TemplateUtil.getDescriptionFromPT(ptPojo);
-				if (template.getRemoveParts() != null && !template.getRemoveParts().isEmpty()) {
-					for (String partToRemove : template.getRemoveParts()) {
-						slotValue = slotValue.replaceAll(partToRemove, "");
-					}
-					if (CaseSignificance.CASE_INSENSITIVE.name().equals(ptPojo.getCaseSignificance())) {
-						slotValue = StringUtils.uncapitalize(slotValue);
-					}
-				}
+				String slotValue = resolveSlotValue(ptPojo, DescriptionType.SYNONYM, template.getRemoveParts());
 				termAndCaseSignificanceMap.put(slotValue, ptPojo.getCaseSignificance());
 				term = term.replace(termSlot, slotValue);
 			}
@@ -204,15 +234,7 @@ public class LexicalTemplateTransformService {
 			if (isAdditionalTermReplacementRequired(template, fsnPojo.getConceptId())) {
 				term = performTermReplacementWithSlotValuesMatched(term, template);
 			} else {
-				String slotValue = TemplateUtil.getDescriptionFromFSN(fsnPojo);
-				if (template.getRemoveParts() != null && !template.getRemoveParts().isEmpty()) {
-					for (String partToRemove : template.getRemoveParts()) {
-						slotValue = slotValue.replaceAll(partToRemove, "");
-					}
-					if (CaseSignificance.CASE_INSENSITIVE.name().equals(fsnPojo.getCaseSignificance())) {
-						slotValue = StringUtils.uncapitalize(slotValue);
-					}
-				}
+				String slotValue = resolveSlotValue(fsnPojo, DescriptionType.FSN, template.getRemoveParts());
 				termAndCaseSignificanceMap.put(slotValue, fsnPojo.getCaseSignificance());
 				term = term.replace(termSlot, slotValue);
 			}
@@ -220,6 +242,29 @@ public class LexicalTemplateTransformService {
 		return term;
 	}
 
+	/**
+	 * @return the term of a slot value description as it is put into generated terms.
+	 * Results are memoized because many concepts share the same slot values.
+	 */
+	private static String resolveSlotValue(DescriptionPojo pojo, DescriptionType type, List<String> removeParts) {
+		List<String> partsToRemove = removeParts != null ? new ArrayList<>(removeParts) : Collections.emptyList();
+		List<Object> key = Arrays.asList(type, pojo.getTerm(), pojo.getCaseSignificance(), partsToRemove);
+		String slotValue = RESOLVED_SLOT_VALUES.getIfPresent(key);
+		if (slotValue == null) {
+			slotValue = DescriptionType.FSN == type ? TemplateUtil.getDescriptionFromFSN(pojo) : TemplateUtil.getDescriptionFromPT(pojo);
+			if (!partsToRemove.isEmpty()) {
+				for (String partToRemove : partsToRemove) {
+					slotValue = slotValue.replaceAll(partToRemove, "");
+				}
+				if (CaseSignificance.CASE_INSENSITIVE.name().equals(pojo.getCaseSignificance())) {
+					slotValue = StringUtils.uncapitalize(slotValue);
+				}
+			}
+			RESOLVED_SLOT_VALUES.put(key, slotValue);
+		}
+		return slotValue;
+	}
+
 	private static boolean isAdditionalTermReplacementRequired(LexicalTemplate template, String conceptId) {
 		if (template.getTermReplacements() != null && !template.getTermReplacements().isEmpty()) {
 			for (ReplacementRule rule : template.getTermReplacements()) {
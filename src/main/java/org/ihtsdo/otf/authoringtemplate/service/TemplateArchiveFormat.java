@@ -0,0 +1,10 @@
+package org.ihtsdo.otf.authoringtemplate.service;
+
+/**
+ * Formats for importing and exporting templates in bulk.
+ * NDJSON holds one template JSON document per line and ZIP one template per .json entry.
+ */
+public enum TemplateArchiveFormat {
+
+	NDJSON, ZIP
+}
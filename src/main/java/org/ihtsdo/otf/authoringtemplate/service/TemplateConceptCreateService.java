@@ -13,17 +13,25 @@ import org.slf4j.LoggerFactory;
 import org.snomed.authoringtemplate.domain.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
 @Service
@@ -33,123 +41,136 @@ public class TemplateConceptCreateService {
 	
 	@Value("${batch.maxSize}")
 	private int batchMaxSize;
+
+	@Value("${search.concept.batch.max}")
+	private int searchBatchMax;
+
+	@Value("${generate.validation.threads}")
+	private int validationThreads;
+
+	// Runs slot value ECL queries with the security context of the submitting thread
+	private ExecutorService validationExecutor;
 	
 	@Autowired
 	private TemplateService templateService;
+
+	@Autowired
+	private TemplateStore templateStore;
 	
 	@Autowired
 	private SnowOwlRestClientFactory terminologyClientFactory;
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	
+	@PostConstruct
+	public void init() {
+		validationExecutor = new DelegatingSecurityContextExecutorService(
+				Executors.newFixedThreadPool(validationThreads, new CustomizableThreadFactory("slot-validation-")));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		validationExecutor.shutdownNow();
+	}
+
 	public List<ConceptOutline> generateConcepts(String branchPath, String templateName, InputStream inputStream) throws IOException, ServiceException {
 		Assert.notNull(inputStream, "Batch file is required.");
 		ConceptTemplate template = templateService.loadOrThrow(templateName);
-		ConceptOutline conceptOutline = template.getConceptOutline();
-		List<Relationship> relationships = conceptOutline.getClassAxioms().stream().findFirst().get().getRelationships();
-		List<SimpleSlot> slotsRequiringInput = TemplateUtil.getSlotsRequiringInput(relationships);
-		List<List<String>> slotColumnValues = getSlotInputValues(inputStream, template);
+		GenerationPlan plan = templateStore.getCompiledTemplate(template).getGenerationPlan();
+		List<List<String>> slotColumnValues = getSlotInputValues(inputStream, plan);
 		int batchSize = slotColumnValues.get(0).size();
+		SnowOwlRestClient client = terminologyClientFactory.getClient();
 		logger.info("Validating {} slot value concepts on branch '{}'", batchSize, branchPath);
-		validateSlotValues(branchPath, slotsRequiringInput, slotColumnValues);
+		validateSlotValues(branchPath, plan.getSlotsRequiringInput(), slotColumnValues, client);
 		logger.info("Generating batch of {} concepts on branch '{}' using template '{}'", batchSize, branchPath, templateName);
-		return createConceptsWithSlotValues(branchPath, slotsRequiringInput, slotColumnValues, template);
+		return createConceptsWithSlotValues(branchPath, slotColumnValues, template, plan, client);
 		
 	}
 
-	private List<ConceptOutline> createConceptsWithSlotValues(String branchPath, List<SimpleSlot> slotsRequiringInput,
-			List<List<String>> slotColumnValues, ConceptTemplate template) throws ServiceException {
-		List<String> additionalSlots = template.getAdditionalSlots();
-		// Generate unsaved concepts
-		List<String> slotNames = slotsRequiringInput.stream()
-						.filter(slot -> slot.getSlotName() != null)
-						.map(SimpleSlot::getSlotName)
-						.collect(Collectors.toList());
-		slotNames.addAll(additionalSlots);
-		
-		List<ConceptOutline> generatedConcepts = constructConceptOutlines(template, slotColumnValues, slotNames);
-				
-		// clone each template description into all concepts
-		template.getConceptOutline().getDescriptions().forEach(description -> generatedConcepts.forEach(concept -> concept.addDescription(description.clone())));
+	/**
+	 * Reads the batch file as a stream and generates concepts {@code batch.maxSize} rows at a time, so any number of rows can be given.
+	 * A batch with invalid values is passed to the handler with its errors and no concepts rather than failing the whole file.
+	 */
+	public void generateConceptsInBatches(String branchPath, String templateName, InputStream inputStream, SnowOwlRestClient client,
+			ConceptBatchHandler handler) throws IOException, ServiceException {
+		Assert.notNull(inputStream, "Batch file is required.");
+		ConceptTemplate template = templateService.loadOrThrow(templateName);
+		GenerationPlan plan = templateStore.getCompiledTemplate(template).getGenerationPlan();
+		try (SlotInputReader reader = new SlotInputReader(inputStream, plan)) {
+			int batchIndex = 0;
+			List<String> errorMessages = new ArrayList<>();
+			List<List<String>> slotColumnValues;
+			while (!(slotColumnValues = reader.readRows(batchMaxSize, errorMessages)).get(0).isEmpty()) {
+				int rowCount = slotColumnValues.get(0).size();
+				List<ConceptOutline> generatedConcepts = Collections.emptyList();
+				try {
+					throwAnyInputErrors(errorMessages);
+					validateSlotValues(branchPath, plan.getSlotsRequiringInput(), slotColumnValues, client);
+					generatedConcepts = createConceptsWithSlotValues(branchPath, slotColumnValues, template, plan, client);
+				} catch (InputError e) {
+					errorMessages = e.getMessages();
+				}
+				logger.info("Generated batch {} of {} concepts on branch '{}' using template '{}'", batchIndex, generatedConcepts.size(), branchPath, templateName);
+				handler.batchGenerated(batchIndex++, rowCount, generatedConcepts, errorMessages);
+				errorMessages = new ArrayList<>();
+			}
+			if (batchIndex == 0) {
+				throw new InputError("Batch input file doesn't contain any rows.");
+			}
+		}
+	}
 
-		for (int i = 0; i < generatedConcepts.size(); i++) {
+	private List<ConceptOutline> createConceptsWithSlotValues(String branchPath, List<List<String>> slotColumnValues, ConceptTemplate template,
+			GenerationPlan plan, SnowOwlRestClient client) throws ServiceException {
+		List<String> slotNames = plan.getSlotNames();
+		int rowCount = slotColumnValues.get(0).size();
+		Map<String, ConceptPojo> slotConcepts = fetchSlotConcepts(branchPath, slotColumnValues, plan.getConceptColumnCount(), client);
+		// Generate unsaved concepts
+		List<ConceptOutline> generatedConcepts = new ArrayList<>(rowCount);
+		for (int i = 0; i < rowCount; i++) {
+			ConceptOutline concept = plan.expand(slotColumnValues, i);
 			List<String> slotRowValues = new ArrayList<>();
 			for (int k = 0; k < slotNames.size(); k ++) {
 				if (i < slotColumnValues.get(k).size()) {
 					slotRowValues.add(slotColumnValues.get(k).get(i));
 				}
 			}
-			Map<String, Set<DescriptionPojo>> slotValuesMap = createSlotConceptPojoMap(branchPath, slotNames, slotRowValues, additionalSlots.size());
-			List<Description> transformed = LexicalTemplateTransformService.transformDescriptions(template.getLexicalTemplates(), generatedConcepts.get(i).getDescriptions(), slotValuesMap);
-			generatedConcepts.get(i).setDescriptions(transformed);
+			Map<String, Set<DescriptionPojo>> slotValuesMap = createSlotConceptPojoMap(slotNames, slotRowValues, plan.getAdditionalSlotCount(), slotConcepts);
+			// The transformation copies each template description so the skeletons are shared by all rows
+			concept.setDescriptions(LexicalTemplateTransformService.transformDescriptions(template.getLexicalTemplates(), plan.getDescriptionSkeletons(), slotValuesMap));
+			generatedConcepts.add(concept);
 		}
 		return generatedConcepts;
 	}
-	
-	private List<ConceptOutline> constructConceptOutlines(ConceptTemplate template, List<List<String>> slotColumnValues, List<String> slotNames) {
-		// convert columnValues into values by row
-		List<List<String>> slotValuesByRow = new ArrayList<>();
-		for (int i = 0; i < slotColumnValues.get(0).size(); i++) {
-			List<String> values = new ArrayList<>();
-			for (int k = 0; k < slotColumnValues.size(); k++) {
-				values.add(slotColumnValues.get(k).get(i));
-			}
-			slotValuesByRow.add(values);
+
+	/**
+	 * Fetches each distinct concept given as a slot value anywhere in the batch, {@code search.concept.batch.max} concepts per request,
+	 * so the number of requests depends on the number of distinct values rather than the number of rows.
+	 */
+	private Map<String, ConceptPojo> fetchSlotConcepts(String branchPath, List<List<String>> slotColumnValues, int conceptColumnCount,
+			SnowOwlRestClient client) throws ServiceException {
+		Set<String> conceptIds = new LinkedHashSet<>();
+		for (int k = 0; k < conceptColumnCount && k < slotColumnValues.size(); k++) {
+			slotColumnValues.get(k).stream()
+					.filter(conceptId -> conceptId != null && !conceptId.isEmpty())
+					.forEach(conceptIds::add);
 		}
-		List<ConceptOutline> generatedConcepts = new ArrayList<>();
-		IntStream.range(0, slotValuesByRow.size()).forEach(i -> generatedConcepts.add(constructConceptOutline(template, slotValuesByRow.get(i), slotNames)));
-		return generatedConcepts;
-	}
-	
-	private ConceptOutline constructConceptOutline(ConceptTemplate template, List<String> slotValues, List<String> slotNames) {
-		ConceptOutline conceptOutline = new ConceptOutline();
-		
-		for (Axiom axiom : template.getConceptOutline().getClassAxioms()) {
-			List<Relationship> relationships = new ArrayList<>();
-			for (Relationship relationship : axiom.getRelationships()) {
-				SimpleSlot targetSlot = relationship.getTargetSlot();
-				if (targetSlot == null) {
-					relationships.add(relationship.clone());
-				}
-				if (targetSlot != null) {
-					String slotName = targetSlot.getSlotName();
-					int valueIndex;
-					if (slotName != null) {
-						valueIndex = slotNames.indexOf(slotName);
-					} else {
-						valueIndex = slotNames.indexOf(targetSlot.getSlotReference());
-					}
-					String slotValue = valueIndex == -1 ? "" : slotValues.get(valueIndex);
-					if (slotValue.trim().isEmpty() && TemplateUtil.isOptional(relationship)) {
-						// skip as it is optional 
-					} else {
-						relationships.add(relationship.clone().setTarget(new ConceptMini(slotValue)));
-					}
+		Map<String, ConceptPojo> conceptIdPojoMap = new HashMap<>();
+		try {
+			for (List<String> conceptIdChunk : Iterables.partition(conceptIds, searchBatchMax)) {
+				for (ConceptPojo pojo : client.searchConcepts(branchPath, conceptIdChunk)) {
+					conceptIdPojoMap.put(pojo.getConceptId(), pojo);
 				}
 			}
-			Axiom generated = new Axiom();
-			generated.setRelationships(relationships);
-			conceptOutline.addAxiom(generated);
+		} catch (RestClientException e) {
+			throw new ServiceException("Failed to get FSNs for concepts from branch " + branchPath, e);
 		}
-		return conceptOutline;
+		return conceptIdPojoMap;
 	}
 
-	private Map<String, Set<DescriptionPojo>> createSlotConceptPojoMap(String branchPath, List<String> slotNames, List<String> slotValues, int additionalSlots) throws ServiceException {
+	private Map<String, Set<DescriptionPojo>> createSlotConceptPojoMap(List<String> slotNames, List<String> slotValues, int additionalSlots,
+			Map<String, ConceptPojo> coneptIdPojoMap) {
 		Map<String, Set<DescriptionPojo>> slotValueMap = new HashMap<>();
-		SnowOwlRestClient client = terminologyClientFactory.getClient();
-		Map<String, ConceptPojo> coneptIdPojoMap = new HashMap<>();
-		try {
-			List<String> conceptIds = slotValues.subList(0, slotValues.size() - additionalSlots)
-					.stream()
-					.filter(Objects::nonNull)
-					.collect(Collectors.toList());
-			List<ConceptPojo> conceptPojos = client.searchConcepts(branchPath, conceptIds);
-			for (ConceptPojo pojo : conceptPojos) {
-				coneptIdPojoMap.put(pojo.getConceptId(), pojo);
-			}
-		} catch (RestClientException e) {
-			throw new ServiceException("Failed to get FSNs for concepts from branch " + branchPath, e);
-		}
 		for (int i = 0; i < slotNames.size(); i++) {
 			if (i < (slotValues.size() - additionalSlots)) {
 				if (coneptIdPojoMap.get(slotValues.get(i)) != null) {
@@ -172,79 +193,134 @@ public class TemplateConceptCreateService {
 		return result;
 	}
 
-	private void validateSlotValues(String branchPath, List<SimpleSlot> slotsRequiringInput, List<List<String>> slotInputValues) throws ServiceException {
-		// Validate values against slot constraints, column at a time
-		int slotIndex = -1;
+	private void validateSlotValues(String branchPath, List<SimpleSlot> slotsRequiringInput, List<List<String>> slotInputValues,
+			SnowOwlRestClient client) throws ServiceException {
+		// Validate values against slot constraints, querying all columns and partitions at once
+		List<Set<String>> invalidValuesBySlot = new ArrayList<>();
+		List<List<Future<Set<String>>>> validValueQueriesBySlot = new ArrayList<>();
+		for (int slotIndex = 0; slotIndex < slotsRequiringInput.size(); slotIndex++) {
+			Set<String> slotValuesToValidate = slotInputValues.get(slotIndex)
+					.stream()
+					.filter(v -> !v.trim().isEmpty())
+					.collect(Collectors.toSet());
+			invalidValuesBySlot.add(new HashSet<>(slotValuesToValidate));
+			String slotEcl = slotsRequiringInput.get(slotIndex).getAllowableRangeECL();
+			List<Future<Set<String>>> validValueQueries = new ArrayList<>();
+			for (List<String> slotValuePartition : Iterables.partition(slotValuesToValidate, 100)) {
+				String validationEcl = constructValidationEcl(slotEcl, slotValuePartition);
+				validValueQueries.add(validationExecutor.submit(() -> client.eclQuery(branchPath, validationEcl, slotValuePartition.size())));
+			}
+			validValueQueriesBySlot.add(validValueQueries);
+		}
+
+		// Collect results in column order so the errors are the same however the queries finish
 		List<String> errorMessages = new ArrayList<>();
 		try {
-			SnowOwlRestClient client = terminologyClientFactory.getClient();
-			for (SimpleSlot simpleSlot : slotsRequiringInput) {
-				slotIndex++;
-				Set<String> slotValuesToValidate = slotInputValues.get(slotIndex)
-						.stream()
-						.filter(v -> !v.trim().isEmpty())
-						.collect(Collectors.toSet());
-				Set<String> invalidSlotValues = new HashSet<>(slotValuesToValidate);
-				String slotEcl = simpleSlot.getAllowableRangeECL();
-				for (List<String> slotValuePartition : Iterables.partition(slotValuesToValidate, 100)) {
-					StringBuilder validationEcl = new StringBuilder()
-							.append("(")
-							.append(slotEcl)
-							.append(") AND (");
-					for (String slotValue : slotValuePartition) {
-						validationEcl.append(slotValue)
-								.append(" OR ");
-					}
-					// Remove last OR
-					validationEcl.delete(validationEcl.length() - 4, validationEcl.length());
-					validationEcl.append(")");
-
-					Set<String> validSlotValues = client.eclQuery(branchPath, validationEcl.toString(), slotValuePartition.size());
-					invalidSlotValues.removeAll(validSlotValues);
+			for (int slotIndex = 0; slotIndex < slotsRequiringInput.size(); slotIndex++) {
+				Set<String> invalidSlotValues = invalidValuesBySlot.get(slotIndex);
+				for (Future<Set<String>> validValueQuery : validValueQueriesBySlot.get(slotIndex)) {
+					invalidSlotValues.removeAll(validValueQuery.get());
 				}
 				if (!invalidSlotValues.isEmpty()) {
 					errorMessages.add(String.format("Column %s has the constraint %s. " +
 									"The following given values do not match this constraint: %s",
 							slotIndex + 1,
-							slotEcl,
+							slotsRequiringInput.get(slotIndex).getAllowableRangeECL(),
 							invalidSlotValues));
 				}
 			}
-		} catch (RestClientException e) {
-			throw new ServiceException("Error validating slots using terminologyClientFactory server.", e);
+		} catch (ExecutionException e) {
+			validValueQueriesBySlot.forEach(queries -> queries.forEach(query -> query.cancel(true)));
+			throw new ServiceException("Error validating slots using terminologyClientFactory server.", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			validValueQueriesBySlot.forEach(queries -> queries.forEach(query -> query.cancel(true)));
+			throw new ServiceException("Interrupted while validating slots.", e);
 		}
 		throwAnyInputErrors(errorMessages);
 	}
+
+	private String constructValidationEcl(String slotEcl, List<String> slotValues) {
+		StringBuilder validationEcl = new StringBuilder()
+				.append("(")
+				.append(slotEcl)
+				.append(") AND (");
+		for (String slotValue : slotValues) {
+			validationEcl.append(slotValue)
+					.append(" OR ");
+		}
+		// Remove last OR
+		validationEcl.delete(validationEcl.length() - 4, validationEcl.length());
+		validationEcl.append(")");
+		return validationEcl.toString();
+	}
 	
-	private List<List<String>> getSlotInputValues(InputStream inputStream, ConceptTemplate template) throws IOException {
-		List<List<String>> columnValues = new ArrayList<>();
+	private List<List<String>> getSlotInputValues(InputStream inputStream, GenerationPlan plan) throws IOException {
+		List<List<String>> columnValues;
 		List<String> errorMessages = new ArrayList<>();
-		List<Relationship> relationships = template.getConceptOutline().getClassAxioms().stream().findFirst().get().getRelationships();
-		List<SimpleSlot> slotsRequiringInput = TemplateUtil.getSlotsRequiringInput(relationships);
-		List<String> additionalSlots = template.getAdditionalSlots();
-		int expectedColumnCount = slotsRequiringInput.size() + additionalSlots.size();
 		// Read input file
-		try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
+		try (SlotInputReader reader = new SlotInputReader(inputStream, plan)) {
+			columnValues = reader.readRows(Integer.MAX_VALUE, errorMessages);
+		}
+		int batchSize = columnValues.get(0).size();
+		if (batchSize > batchMaxSize) {
+			errorMessages.add(String.format("Batch input file contains %s rows, the maximum permitted is %s.", batchSize, batchMaxSize));
+		}
+		throwAnyInputErrors(errorMessages);
+
+		if (batchSize == 0) {
+			throw new InputError("Batch input file doesn't contain any rows.");
+		}
+		return columnValues;
+	}
+
+	/**
+	 * Reads slot values from a batch file a number of rows at a time after validating the header.
+	 */
+	private class SlotInputReader implements Closeable {
+
+		private final BufferedReader reader;
+
+		private final int slotColumnCount;
+
+		private final int expectedColumnCount;
+
+		private final List<Integer> optionalFieldIndexes;
+
+		private int lineNum = 1;
+
+		SlotInputReader(InputStream inputStream, GenerationPlan plan) throws IOException {
+			reader = new BufferedReader(new InputStreamReader(inputStream));
+			slotColumnCount = plan.getSlotsRequiringInput().size();
+			expectedColumnCount = slotColumnCount + plan.getAdditionalSlotCount();
 			// Validate header
 			String header = reader.readLine();
 			validateHeader(header, expectedColumnCount);
-			List<Integer> optionalFieldIndexes = getOptionalFields(header);
-			// Collect values with basic validation
+			optionalFieldIndexes = getOptionalFields(header);
+		}
+
+		/**
+		 * Collects values by column with basic validation, adding any errors to the given list.
+		 * @return values of up to maxRows rows, none once the end of the file is reached
+		 */
+		List<List<String>> readRows(int maxRows, List<String> errorMessages) throws IOException {
+			List<List<String>> columnValues = new ArrayList<>();
 			LongStream.range(0, expectedColumnCount).forEach(v -> columnValues.add(new ArrayList<>()));
+			int rows = 0;
 			String line;
-			int lineNum = 1;
-			while ((line = reader.readLine()) != null) {
+			while (rows < maxRows && (line = reader.readLine()) != null) {
 				lineNum++;
 				if (line.trim().isEmpty()) {
 					continue;
 				}
+				rows++;
 				String[] values = line.split("\\t", -1);
 				if (values.length != expectedColumnCount) {
 					errorMessages.add(String.format("Line %s has %s columns, expecting %s", lineNum, values.length, expectedColumnCount));
 				}
 				for (int column = 0; column < values.length; column++) {
 					String conceptId = values[column].trim();
-					if (column < slotsRequiringInput.size() && !isValidConceptId(conceptId)) {
+					if (column < slotColumnCount && !isValidConceptId(conceptId)) {
 						if (!optionalFieldIndexes.contains(column)) {
 							errorMessages.add(getError(conceptId, "is not a valid concept identifier", lineNum, column));
 						}
@@ -252,17 +328,21 @@ public class TemplateConceptCreateService {
 					columnValues.get(column).add(conceptId);
 				}
 			}
+			return columnValues;
 		}
-		int batchSize = columnValues.get(0).size();
-		if (batchSize > batchMaxSize) {
-			errorMessages.add(String.format("Batch input file contains %s rows, the maximum permitted is %s.", batchSize, batchMaxSize));
-		}
-		throwAnyInputErrors(errorMessages);
 
-		if (batchSize == 0) {
-			throw new InputError("Batch input file doesn't contain any rows.");
+		@Override
+		public void close() throws IOException {
+			reader.close();
 		}
-		return columnValues;
+	}
+
+	/**
+	 * Receives each batch of concepts generated from a batch file.
+	 */
+	@FunctionalInterface
+	public interface ConceptBatchHandler {
+		void batchGenerated(int batchIndex, int rowCount, List<ConceptOutline> concepts, List<String> errors) throws ServiceException;
 	}
 	
 	private List<Integer> getOptionalFields(String header) {
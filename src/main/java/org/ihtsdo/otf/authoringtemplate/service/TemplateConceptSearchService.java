@@ -1,12 +1,12 @@
 package org.ihtsdo.otf.authoringtemplate.service;
 
+import com.google.common.collect.Iterables;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.rest.client.RestClientException;
+import org.ihtsdo.otf.rest.client.terminologyserver.SnowOwlRestClient;
 import org.ihtsdo.otf.rest.client.terminologyserver.SnowOwlRestClientFactory;
-import org.ihtsdo.otf.rest.client.terminologyserver.pojo.AxiomPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
-import org.ihtsdo.otf.rest.client.terminologyserver.pojo.RelationshipPojo;
 import org.ihtsdo.otf.rest.exception.ResourceNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,12 +15,24 @@ import org.snomed.authoringtemplate.domain.DescriptionType;
 import org.snomed.authoringtemplate.domain.logical.Attribute;
 import org.snomed.authoringtemplate.domain.logical.AttributeGroup;
 import org.snomed.authoringtemplate.domain.logical.LogicalTemplate;
-import org.snomed.authoringtemplate.service.LogicalTemplateParserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -33,8 +45,8 @@ public class TemplateConceptSearchService {
 
 	private static final String CARDINALITY_SEPARATOR = "..";
 
-	@Autowired 
-	private LogicalTemplateParserService logicalTemplateParser;
+	@Autowired
+	private TemplateStore templateStore;
 	
 	@Autowired
 	private SnowOwlRestClientFactory terminologyClientFactory;
@@ -44,10 +56,60 @@ public class TemplateConceptSearchService {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(TemplateConceptSearchService.class);
 
-	private static final int MAX = 200000;
+	// Most concepts the logical search can match, the terminology server returns no more than this
+	static final int MAX = 200000;
+
+	@Value("${search.concept.batch.max}")
+	private int searchBatchMax;
+
+	@Value("${search.concept.fetch.threads}")
+	private int fetchThreads;
+
+	@Value("${search.concept.fetch.queueCapacity}")
+	private int fetchQueueCapacity;
+
+	@Value("${search.concept.fetch.maxChunksPerSearch}")
+	private int maxChunksPerSearch;
+
+	@Value("${search.concept.timeout.seconds}")
+	private long searchTimeoutSeconds;
+
+	private ThreadPoolExecutor conceptFetchExecutor;
+
+	/**
+	 * The queue is bounded and, when full, the searching thread fetches the chunk itself, so searches can't queue unlimited work.
+	 */
+	@PostConstruct
+	public void init() {
+		conceptFetchExecutor = new ThreadPoolExecutor(fetchThreads, fetchThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(fetchQueueCapacity),
+				new CustomizableThreadFactory("concept-fetch-"),
+				(task, pool) -> {
+					if (pool.isShutdown()) {
+						throw new RejectedExecutionException("Concept fetch executor has been shut down");
+					}
+					task.run();
+				});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		conceptFetchExecutor.shutdownNow();
+	}
 	
 	public Set<String> searchConceptsByTemplate(String templateName, String branchPath, 
 			Boolean logicalMatch, Boolean lexicalMatch, boolean stated) throws ServiceException, ResourceNotFoundException {
+		Set<String> results = new HashSet<>();
+		searchConceptsByTemplate(templateName, branchPath, logicalMatch, lexicalMatch, stated, results::addAll);
+		return results;
+	}
+
+	/**
+	 * Same as {@link #searchConceptsByTemplate(String, String, Boolean, Boolean, boolean)} but hands matching concept ids
+	 * to the consumer one chunk at a time, so full concepts are only held in memory for the chunk being checked.
+	 */
+	public void searchConceptsByTemplate(String templateName, String branchPath, Boolean logicalMatch, Boolean lexicalMatch,
+			boolean stated, Consumer<Collection<String>> resultConsumer) throws ServiceException, ResourceNotFoundException {
 		
 			LOGGER.info("Search concepts for template={}, on branchPath={}, with logicalMatch={}, lexicalMatch={} and stated={}",
 					templateName, branchPath, logicalMatch, lexicalMatch, stated);
@@ -62,84 +124,47 @@ public class TemplateConceptSearchService {
 			}
 			try {
 				ConceptTemplate conceptTemplate = templateService.loadOrThrow(templateName);
-				// Parse logical
-				LogicalTemplate logical = logicalTemplateParser.parseTemplate(conceptTemplate.getLogicalTemplate());
+				// Parsed logical template and term patterns cached with the template
+				CompiledTemplate compiled = templateStore.getCompiledTemplate(conceptTemplate);
 				if (lexicalMatch != null) {
-					Set<String> logicalResult = performLogicalSearch(conceptTemplate, logical, branchPath, true, stated);
-					return performLexicalSearch(conceptTemplate, logicalResult, branchPath, lexicalMatch);
+					performSearch(compiled, branchPath, true, lexicalMatch, stated, resultConsumer);
 				} else {
-					return performLogicalSearch(conceptTemplate, logical, branchPath, logicalMatch, stated);
+					performSearch(compiled, branchPath, logicalMatch, null, stated, resultConsumer);
 				}
 		} catch (IOException e) {
 			throw new ServiceException("Failed to load tempate " + templateName);
 		}
 	}
-	
-	private Set<String> performLexicalSearch(ConceptTemplate conceptTemplate,
-			Set<String> logicalMatched, String branchPath, boolean lexicalMatch) throws ServiceException {
+
+	private boolean isLexicallyMatched(CompiledTemplate compiled, ConceptPojo conceptPojo) {
+		List<String> synoyms = conceptPojo.getDescriptions()
+				.stream()
+				.filter(DescriptionPojo::isActive)
+				.filter(d -> d.getType().equals(DescriptionType.SYNONYM.name()))
+				.map(DescriptionPojo::getTerm)
+				.collect(Collectors.toList());
+		
+		List<String> fsns = conceptPojo.getDescriptions()
+				.stream()
+				.filter(DescriptionPojo::isActive)
+				.filter(d -> d.getType().equals(DescriptionType.FSN.name()))
+				.map(DescriptionPojo::getTerm)
+				.collect(Collectors.toList());
 		
-		Set<String> result = new HashSet<>();
-		if (logicalMatched == null || logicalMatched.isEmpty()) {
-			LOGGER.info("No results found for logical search.");
-			return result;
+		boolean isMatched = false;
+		for (Pattern pattern : compiled.getFsnPatterns().keySet()) {
+			isMatched = isPatternMatched(pattern, fsns);
+			if (!isMatched) {
+				break;
+			} 
 		}
-
-		// TODO Remove unused code? Should it be used?
-//		List<Description> descriptions = conceptTemplate.getConceptOutline().getDescriptions();
-//		List<Pattern> patterns = new ArrayList<>();
-//		for (Description description : descriptions) {
-//			if (description.getTermTemplate() != null) {
-//				patterns.add(TemplateUtil.constructTermPattern(description.getTermTemplate()));
-//			}
-//		}
-
-		Map<Pattern, Set<String>> fsnPatternSlotsMap = TemplateUtil.compilePatterns(
-				TemplateUtil.getTermTemplates(conceptTemplate, DescriptionType.FSN));
-
-		Map<Pattern, Set<String>> synoymPatternSlotsMap = TemplateUtil.compilePatterns(
-				TemplateUtil.getTermTemplates(conceptTemplate, DescriptionType.SYNONYM));
-		try {
-			Collection<ConceptPojo> concepts = terminologyClientFactory.getClient()
-					.searchConcepts(branchPath, new ArrayList<>(logicalMatched));
-			for (ConceptPojo conceptPojo : concepts) {
-				List<String> synoyms = conceptPojo.getDescriptions()
-						.stream()
-						.filter(DescriptionPojo::isActive)
-						.filter(d -> d.getType().equals(DescriptionType.SYNONYM.name()))
-						.map(DescriptionPojo::getTerm)
-						.collect(Collectors.toList());
-				
-				List<String> fsns = conceptPojo.getDescriptions()
-						.stream()
-						.filter(DescriptionPojo::isActive)
-						.filter(d -> d.getType().equals(DescriptionType.FSN.name()))
-						.map(DescriptionPojo::getTerm)
-						.collect(Collectors.toList());
-				
-				boolean isMatched = false;
-				for (Pattern pattern : fsnPatternSlotsMap.keySet()) {
-					isMatched = isPatternMatched(pattern, fsns);
-					if (!isMatched) {
-						break;
-					} 
-				}
-				for (Pattern pattern : synoymPatternSlotsMap.keySet()) {
-					isMatched = isPatternMatched(pattern, synoyms);
-					if (!isMatched) {
-						break;
-					} 
-				}
-				if (lexicalMatch && isMatched) {
-					result.add(conceptPojo.getConceptId());
-				} else if (!lexicalMatch && !isMatched){
-					result.add(conceptPojo.getConceptId());
-				}
-			}
-			LOGGER.info("Logical search results={} and lexical search results={}", logicalMatched.size(), result.size());
-			return result;
-		} catch (RestClientException e) {
-			throw new ServiceException("Failed to complete lexical template search.", e);
+		for (Pattern pattern : compiled.getSynonymPatterns().keySet()) {
+			isMatched = isPatternMatched(pattern, synoyms);
+			if (!isMatched) {
+				break;
+			} 
 		}
+		return isMatched;
 	}
 
 	private boolean isPatternMatched(Pattern pattern, Collection<String> terms) {
@@ -151,9 +176,15 @@ public class TemplateConceptSearchService {
 		return false;
 	}
 
-	private Set<String> performLogicalSearch(ConceptTemplate conceptTemplate, LogicalTemplate logical,
-			String branchPath, boolean logicalMatch, boolean stated) throws ServiceException {
+	/**
+	 * Runs the logical ECL once and then fetches the matched concepts in chunks of {@code search.concept.batch.max},
+	 * applying the exact match filter and, when lexicalMatch is set, the lexical patterns to each chunk as it arrives.
+	 */
+	private void performSearch(CompiledTemplate compiled, String branchPath, boolean logicalMatch, Boolean lexicalMatch,
+			boolean stated, Consumer<Collection<String>> resultConsumer) throws ServiceException {
+		String templateName = compiled.getTemplate().getName();
 		try {
+			LogicalTemplate logical = compiled.getLogicalTemplate();
 			List<String> focusConcepts = logical.getFocusConcepts();
 			String domainEcl = constructEclQuery(focusConcepts, Collections.emptyList(), Collections.emptyList());
 			LOGGER.debug("Domain ECL=" + domainEcl);
@@ -163,88 +194,131 @@ public class TemplateConceptSearchService {
 			LOGGER.debug("Logic template ECL=" + logicalEcl);
 			String ecl = constructLogicalSearchEcl(domainEcl, logicalEcl, logicalMatch);
 			LOGGER.info("Logical search ECL={} stated={}", ecl, stated);
-			Set<String> results = new HashSet<>(terminologyClientFactory.getClient().eclQuery(branchPath, ecl, MAX, stated));
-			List<ConceptPojo> conceptPojos = terminologyClientFactory.getClient().searchConcepts(branchPath, new ArrayList<>(results));
-			Set<String> toRemove = findConceptsNotMatchExactly(conceptPojos, attributeGroups, unGroupedAttributes, stated);
-			if (toRemove.size() > 0) {
-				LOGGER.info("Total concepts " + toRemove.size() + " are removed from results.");
-				results.removeAll(toRemove);
+			SnowOwlRestClient client = terminologyClientFactory.getClient();
+			Set<String> logicalMatched = client.eclQuery(branchPath, ecl, MAX, stated);
+			if (logicalMatched.size() >= MAX) {
+				// Results would silently be missing the concepts beyond the limit
+				LOGGER.warn("Logical search for template {} on branch {} reached the limit of {} concepts", templateName, branchPath, MAX);
+				throw new ServiceException(String.format("Template search for template %s matches more than %s concepts, which is more than can be searched",
+						templateName, MAX));
 			}
-			LOGGER.info("Logical results {}", results.size());
-			return results;
-		} catch (Exception e) {
-			String msg = "Failed to complete logical template search for template " + conceptTemplate.getName();
-			if (e.getCause() != null && e.getCause().getMessage() != null) {
-				msg = msg + " due to " +  e.getCause().getMessage();
+			if (lexicalMatch != null && logicalMatched.isEmpty()) {
+				LOGGER.info("No results found for logical search.");
+				return;
 			}
-			throw new ServiceException(msg, e);
+			fetchAndFilterInParallel(compiled, branchPath, logicalMatched, lexicalMatch, stated, client, resultConsumer);
+		} catch (RestClientException e) {
+			throw searchFailure(templateName, e);
 		}
 	}
 
-	protected Set<String> findConceptsNotMatchExactly(List<ConceptPojo> conceptPojos, List<AttributeGroup> attributeGroups,
-			List<Attribute> unGroupedAttributes, boolean stated) {
-		
-		List<Set<String>> allTypes = new ArrayList<>();
-		List<Set<String>> mandatoryTypes = new ArrayList<>();
-		for (AttributeGroup group : attributeGroups) {
-			Set<String> groupTypes = new HashSet<>();
-			Set<String> mandatoryGroupTypes = new HashSet<>();
-			for (Attribute attribute : group.getAttributes()) {
-				groupTypes.add(attribute.getType());
-				if ("1".equals(attribute.getCardinalityMin())) {
-					mandatoryGroupTypes.add(attribute.getType());
-				}
+	/**
+	 * Fetches the full concepts for the given ids in chunks on the shared fetch executor, keeping at most
+	 * {@code search.concept.fetch.maxChunksPerSearch} chunks in flight per request. Each chunk is filtered as soon as it arrives
+	 * so fetching and pattern matching overlap. Gives up once {@code search.concept.timeout.seconds} has passed.
+	 */
+	private void fetchAndFilterInParallel(CompiledTemplate compiled, String branchPath, Set<String> logicalMatched, Boolean lexicalMatch,
+			boolean stated, SnowOwlRestClient client, Consumer<Collection<String>> resultConsumer) throws ServiceException {
+		String templateName = compiled.getTemplate().getName();
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(searchTimeoutSeconds);
+		Iterator<List<String>> pending = Iterables.partition(logicalMatched, searchBatchMax).iterator();
+		CompletionService<FetchedChunk> completionService = new ExecutorCompletionService<>(conceptFetchExecutor);
+		List<Future<FetchedChunk>> futures = new ArrayList<>();
+		int inFlight = 0;
+		int removed = 0;
+		int matched = 0;
+		try {
+			while (inFlight < maxChunksPerSearch && pending.hasNext()) {
+				futures.add(submitFetch(completionService, client, branchPath, pending.next()));
+				inFlight++;
 			}
-			allTypes.add(groupTypes);
-			if ("1".equals(group.getCardinalityMin())) {
-				mandatoryTypes.add(mandatoryGroupTypes);
+			while (inFlight > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				Future<FetchedChunk> done = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+				if (done == null) {
+					throw new ServiceException(String.format("Template search for template %s timed out after %s seconds", templateName, searchTimeoutSeconds));
+				}
+				inFlight--;
+				FetchedChunk fetched = done.get();
+				if (pending.hasNext()) {
+					futures.add(submitFetch(completionService, client, branchPath, pending.next()));
+					inFlight++;
+				}
+				Set<String> toRemove = findConceptsNotMatchExactly(fetched.concepts, compiled.getExactMatchEvaluator(), stated);
+				removed += toRemove.size();
+				List<String> chunkResults;
+				if (lexicalMatch == null) {
+					chunkResults = fetched.conceptIds.stream().filter(id -> !toRemove.contains(id)).collect(Collectors.toList());
+				} else {
+					chunkResults = fetched.concepts.stream()
+							.filter(pojo -> !toRemove.contains(pojo.getConceptId()))
+							.filter(pojo -> isLexicallyMatched(compiled, pojo) == lexicalMatch)
+							.map(ConceptPojo::getConceptId)
+							.collect(Collectors.toList());
+				}
+				matched += chunkResults.size();
+				if (!chunkResults.isEmpty()) {
+					resultConsumer.accept(chunkResults);
+				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Template search for template " + templateName + " was interrupted", e);
+		} catch (ExecutionException e) {
+			throw searchFailure(templateName, e.getCause());
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+		if (removed > 0) {
+			LOGGER.info("Total concepts " + removed + " are removed from results.");
 		}
+		if (lexicalMatch != null) {
+			LOGGER.info("Logical search results={} and lexical search results={}", logicalMatched.size() - removed, matched);
+		} else {
+			LOGGER.info("Logical results {}", matched);
+		}
+	}
 
-		Set<String> ungrouped = new HashSet<>();
-		Set<String> mandatoryUngrouped = new HashSet<>();
-		ungrouped.add(Constants.IS_A);
-		mandatoryUngrouped.add(Constants.IS_A);
-		for (Attribute attr : unGroupedAttributes) {
-			ungrouped.add(attr.getType());
-			if ("1".equals(attr.getCardinalityMin())) {
-				mandatoryUngrouped.add(attr.getType());
-			}
+	private Future<FetchedChunk> submitFetch(CompletionService<FetchedChunk> completionService, SnowOwlRestClient client,
+			String branchPath, List<String> conceptIds) {
+		return completionService.submit(() -> new FetchedChunk(conceptIds, client.searchConcepts(branchPath, conceptIds)));
+	}
+
+	private ServiceException searchFailure(String templateName, Throwable e) {
+		String msg = "Failed to complete template search for template " + templateName;
+		if (e.getCause() != null && e.getCause().getMessage() != null) {
+			msg = msg + " due to " +  e.getCause().getMessage();
+		} else if (e.getMessage() != null) {
+			msg = msg + " due to " +  e.getMessage();
 		}
-		allTypes.add(ungrouped);
-		mandatoryTypes.add(mandatoryUngrouped);
-		
+		return new ServiceException(msg, e);
+	}
+
+	private static class FetchedChunk {
+
+		private final List<String> conceptIds;
+		private final List<ConceptPojo> concepts;
+
+		FetchedChunk(List<String> conceptIds, List<ConceptPojo> concepts) {
+			this.conceptIds = conceptIds;
+			this.concepts = concepts != null ? concepts : Collections.emptyList();
+		}
+	}
+
+	protected Set<String> findConceptsNotMatchExactly(List<ConceptPojo> conceptPojos, List<AttributeGroup> attributeGroups,
+			List<Attribute> unGroupedAttributes, boolean stated) {
+		return findConceptsNotMatchExactly(conceptPojos, new ExactMatchEvaluator(attributeGroups, unGroupedAttributes), stated);
+	}
+
+	private Set<String> findConceptsNotMatchExactly(List<ConceptPojo> conceptPojos, ExactMatchEvaluator evaluator, boolean stated) {
 		Set<String> missing = new HashSet<>();
 		Set<String> havingExtra = new HashSet<>();
 		for (ConceptPojo concept : conceptPojos) {
-			// Map relationship by group
-			List<RelationshipPojo> activeRelationships = new ArrayList<>();
-			if (stated) {
-				if (concept.getClassAxioms() != null) {
-					for (AxiomPojo axiom: concept.getClassAxioms()) {
-						if (axiom.isActive()) {
-							activeRelationships.addAll(axiom.getRelationships());
-						}
-					}
-				} 
-			} else {
-				activeRelationships = concept.getRelationships().stream()
-						.filter(RelationshipPojo::isActive)
-						.filter(r -> r.getCharacteristicType().equals(Constants.INFERRED))
-						.collect(Collectors.toList());
-			}
-			
-			Map<Integer, Set<String>> relGroupMap = new HashMap<>();
-			for (RelationshipPojo pojo : activeRelationships) {
-				relGroupMap.computeIfAbsent(pojo.getGroupId(), k -> new HashSet<>())
-				.add(pojo.getType().getConceptId());
-			}
-			
-			if (missingMandatoryAttribute(mandatoryTypes, relGroupMap.values())) {
+			int result = evaluator.evaluate(concept, stated);
+			if ((result & ExactMatchEvaluator.MISSING_MANDATORY_ATTRIBUTE) != 0) {
 				missing.add(concept.getConceptId());
 			}
-			
-			if (containExtraAttribute(allTypes, relGroupMap.values())) {
+			if ((result & ExactMatchEvaluator.EXTRA_ATTRIBUTE) != 0) {
 				havingExtra.add(concept.getConceptId());
 			}
 		}
@@ -262,40 +336,6 @@ public class TemplateConceptSearchService {
 		results.addAll(havingExtra);
 		return results;
 	}
-	
-	private boolean missingMandatoryAttribute(List<Set<String>> mandatoryTypes, Collection<Set<String>> relGroups) {
-		// Check all mandatory attributes are present
-		for (Set<String> mandatory : mandatoryTypes) {
-			boolean isFound = false;
-			for (Set<String> typeSet : relGroups) {
-				if (typeSet.containsAll(mandatory)) {
-					isFound = true;
-					break;
-				}
-			}
-			if (!isFound) {
-				return true;
-			}
-		}
-		return false;
-	}
-
-	private boolean containExtraAttribute(List<Set<String>> allTypes, Collection<Set<String>> relGroups) {
-		// Check no additional types
-		for (Set<String> typeSet : relGroups) {
-			boolean isFound = false;
-			for (Set<String> allType : allTypes) {
-				if (allType.containsAll(typeSet)) {
-					isFound = true;
-					break;
-				}
-			}
-			if (!isFound) {
-				return true;
-			}
-		}
-		return false;
-	}
 
 	private String constructLogicalSearchEcl(String domainEcl, String logicalEcl, boolean logicalMatch) {
 		StringBuilder builder = new StringBuilder();
@@ -1,5 +1,11 @@
 package org.ihtsdo.otf.authoringtemplate.service;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import org.apache.commons.lang.ArrayUtils;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.rest.client.RestClientException;
@@ -12,19 +18,33 @@ import org.snomed.authoringtemplate.domain.ConceptTemplate;
 import org.snomed.authoringtemplate.domain.Relationship;
 import org.snomed.authoringtemplate.domain.SimpleSlot;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.core.context.SecurityContext;
-import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
 
+import javax.annotation.PostConstruct;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -33,6 +53,8 @@ public class TemplateService {
 
 	static final String OPTIONAL = "(optional)";
 
+	private static final String JSON_EXTENSION = ".json";
+
 	public static final Pattern TERM_SLOT_PATTERN = Pattern.compile("\\$([^\\$]*)\\$");
 
 	@Autowired
@@ -41,8 +63,37 @@ public class TemplateService {
 	@Autowired
 	private SnowOwlRestClientFactory terminologyClientFactory;
 
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Value("${templates.listing.batchEcl}")
+	private boolean listingBatchEcl;
+
+	@Value("${templates.listing.cache.maxSize}")
+	private long listingCacheMaxSize;
+
+	@Value("${templates.listing.cache.expireAfterWriteMinutes}")
+	private long listingCacheExpireMinutes;
+
+	// Whether templates with a focus concept pass the descendantOf/ancestorOf filter on a branch
+	private Cache<FocusConceptFilterKey, Boolean> focusConceptFilterCache;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
+	@PostConstruct
+	public void init() {
+		focusConceptFilterCache = CacheBuilder.newBuilder()
+				.maximumSize(listingCacheMaxSize)
+				.expireAfterWrite(listingCacheExpireMinutes, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+		GuavaCacheMetrics.monitor(meterRegistry, focusConceptFilterCache, "templateFocusConceptFilter");
+		GuavaCacheMetrics.monitor(meterRegistry, LexicalTemplateTransformService.getResolvedSlotValuesCache(), "lexicalTemplateResolvedSlotValues");
+	}
+
 	public String create(String name, ConceptTemplate conceptTemplate) throws IOException, ServiceException {
 		if (load(name) != null) {
 			throw new IllegalArgumentException("Template with name '" + name + "' already exists.");
@@ -53,6 +104,7 @@ public class TemplateService {
 		// TODO Validate that lexicalTemplates and terms within ConceptTemplate descriptions match
 
 		templateStore.save(name, conceptTemplate);
+		focusConceptFilterCache.invalidateAll();
 
 		return name;
 	}
@@ -77,44 +129,173 @@ public class TemplateService {
 		}
 		conceptTemplateUpdate.setVersion(existingTemplate.getVersion() + 1);
 		templateStore.save(name, conceptTemplateUpdate);
+		focusConceptFilterCache.invalidateAll();
 
 		return conceptTemplateUpdate;
 	}
 
 	public Set<ConceptTemplate> listAll(String branchPath, String[] descendantOf, String[] ancestorOf) throws IOException {
 		Set<ConceptTemplate> templates = listAll();
-		SnowOwlRestClient terminologyClient = terminologyClientFactory.getClient();
 		if (!ArrayUtils.isEmpty(descendantOf) || !ArrayUtils.isEmpty(ancestorOf)) {
 			// Group templates by focus concept to reduce the number of ECL queries
 			Map<String, List<ConceptTemplate>> templatesByFocusConcept = templates.stream().collect(Collectors.groupingBy(ConceptTemplate::getFocusConcept));
-			SecurityContext securityContext = SecurityContextHolder.getContext();
-			return templatesByFocusConcept.entrySet().stream().filter(entry -> {
-				SecurityContextHolder.setContext(securityContext);
-				String focusConcept = entry.getKey();
-				String ecl = "";
-				for (int i = 0; descendantOf != null && i < descendantOf.length; i++) {
-					if (i > 0) ecl += " OR ";
-					ecl += "(" + focusConcept + " AND <<" + descendantOf[i] + ")";
+			Set<String> matchedFocusConcepts = new HashSet<>();
+			Set<String> uncheckedFocusConcepts = new HashSet<>();
+			for (String focusConcept : templatesByFocusConcept.keySet()) {
+				Boolean cached = focusConceptFilterCache.getIfPresent(new FocusConceptFilterKey(branchPath, focusConcept, descendantOf, ancestorOf));
+				if (cached == null) {
+					uncheckedFocusConcepts.add(focusConcept);
+				} else if (cached) {
+					matchedFocusConcepts.add(focusConcept);
 				}
-				for (int i = 0; ancestorOf != null && i < ancestorOf.length; i++) {
-					if (!ArrayUtils.isEmpty(descendantOf) || i > 0) ecl += " OR ";
-					ecl += "(" + focusConcept + " AND >>" + ancestorOf[i] + ")";
-				}
-				try {
-					return terminologyClient.eclQueryHasAnyMatches(branchPath, ecl);
-				} catch (RestClientException e) {
-					logger.error("Failed to filter templates using ECL", e);
-					return false;
+			}
+			if (!uncheckedFocusConcepts.isEmpty()) {
+				SnowOwlRestClient terminologyClient = terminologyClientFactory.getClient();
+				if (listingBatchEcl) {
+					matchedFocusConcepts.addAll(filterFocusConceptsInOneQuery(terminologyClient, branchPath, uncheckedFocusConcepts, descendantOf, ancestorOf));
+				} else {
+					matchedFocusConcepts.addAll(filterFocusConceptsOneByOne(terminologyClient, branchPath, uncheckedFocusConcepts, descendantOf, ancestorOf));
 				}
-			}).map(Map.Entry::getValue).flatMap(List::stream).collect(Collectors.toSet());
+			}
+			return templatesByFocusConcept.entrySet().stream()
+					.filter(entry -> matchedFocusConcepts.contains(entry.getKey()))
+					.map(Map.Entry::getValue).flatMap(List::stream).collect(Collectors.toSet());
 		}
 		return templates;
 	}
 
+	private Set<String> filterFocusConceptsOneByOne(SnowOwlRestClient terminologyClient, String branchPath, Set<String> focusConcepts,
+			String[] descendantOf, String[] ancestorOf) {
+		Set<String> matched = new HashSet<>();
+		for (String focusConcept : focusConcepts) {
+			String ecl = "";
+			for (int i = 0; descendantOf != null && i < descendantOf.length; i++) {
+				if (i > 0) ecl += " OR ";
+				ecl += "(" + focusConcept + " AND <<" + descendantOf[i] + ")";
+			}
+			for (int i = 0; ancestorOf != null && i < ancestorOf.length; i++) {
+				if (!ArrayUtils.isEmpty(descendantOf) || i > 0) ecl += " OR ";
+				ecl += "(" + focusConcept + " AND >>" + ancestorOf[i] + ")";
+			}
+			try {
+				boolean matches = terminologyClient.eclQueryHasAnyMatches(branchPath, ecl);
+				focusConceptFilterCache.put(new FocusConceptFilterKey(branchPath, focusConcept, descendantOf, ancestorOf), matches);
+				if (matches) {
+					matched.add(focusConcept);
+				}
+			} catch (RestClientException e) {
+				logger.error("Failed to filter templates using ECL", e);
+			}
+		}
+		return matched;
+	}
+
+	private Set<String> filterFocusConceptsInOneQuery(SnowOwlRestClient terminologyClient, String branchPath, Set<String> focusConcepts,
+			String[] descendantOf, String[] ancestorOf) {
+		// (f1 OR f2 OR ...) AND (<<d1 OR ... OR >>a1 OR ...) returns the focus concepts passing the filter
+		List<String> constraints = new ArrayList<>();
+		for (int i = 0; descendantOf != null && i < descendantOf.length; i++) {
+			constraints.add("<<" + descendantOf[i]);
+		}
+		for (int i = 0; ancestorOf != null && i < ancestorOf.length; i++) {
+			constraints.add(">>" + ancestorOf[i]);
+		}
+		String ecl = "(" + String.join(" OR ", new TreeSet<>(focusConcepts)) + ") AND (" + String.join(" OR ", constraints) + ")";
+		try {
+			Set<String> matched = terminologyClient.eclQuery(branchPath, ecl, focusConcepts.size());
+			for (String focusConcept : focusConcepts) {
+				focusConceptFilterCache.put(new FocusConceptFilterKey(branchPath, focusConcept, descendantOf, ancestorOf), matched.contains(focusConcept));
+			}
+			return matched;
+		} catch (RestClientException e) {
+			logger.error("Failed to filter templates using ECL", e);
+			return Collections.emptySet();
+		}
+	}
+
 	public Set<ConceptTemplate> listAll() throws IOException {
 		return templateStore.loadAll();
 	}
 
+	/**
+	 * Creates or replaces all the templates read from the input together, see {@link TemplateStore#saveAll(Map)}.
+	 * Templates in a zip archive without a name are named after their entry.
+	 * @return names of the templates imported
+	 */
+	public Set<String> importTemplates(InputStream input, TemplateArchiveFormat format) throws IOException, ServiceException {
+		Map<String, ConceptTemplate> conceptTemplates = TemplateArchiveFormat.ZIP == format ? readZip(input) : readNdjson(input);
+		for (Map.Entry<String, ConceptTemplate> entry : conceptTemplates.entrySet()) {
+			ConceptTemplate existingTemplate = load(entry.getKey());
+			entry.getValue().setVersion(existingTemplate != null ? existingTemplate.getVersion() + 1 : 1);
+		}
+		templateStore.saveAll(conceptTemplates);
+		focusConceptFilterCache.invalidateAll();
+		return new TreeSet<>(conceptTemplates.keySet());
+	}
+
+	private Map<String, ConceptTemplate> readNdjson(InputStream input) throws IOException {
+		Map<String, ConceptTemplate> conceptTemplates = new LinkedHashMap<>();
+		MappingIterator<ConceptTemplate> iterator = objectMapper.readerFor(ConceptTemplate.class).readValues(input);
+		int count = 0;
+		while (iterator.hasNextValue()) {
+			ConceptTemplate conceptTemplate = iterator.nextValue();
+			addImported(conceptTemplates, conceptTemplate.getName(), conceptTemplate, "record " + ++count);
+		}
+		return conceptTemplates;
+	}
+
+	private Map<String, ConceptTemplate> readZip(InputStream input) throws IOException {
+		Map<String, ConceptTemplate> conceptTemplates = new LinkedHashMap<>();
+		ZipInputStream zip = new ZipInputStream(input);
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			String entryName = entry.getName();
+			if (entry.isDirectory() || !entryName.endsWith(JSON_EXTENSION)) {
+				continue;
+			}
+			ConceptTemplate conceptTemplate = objectMapper.readValue(StreamUtils.copyToByteArray(zip), ConceptTemplate.class);
+			String name = conceptTemplate.getName();
+			if (name == null) {
+				String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+				name = fileName.substring(0, fileName.length() - JSON_EXTENSION.length());
+			}
+			addImported(conceptTemplates, name, conceptTemplate, entryName);
+		}
+		return conceptTemplates;
+	}
+
+	private void addImported(Map<String, ConceptTemplate> conceptTemplates, String name, ConceptTemplate conceptTemplate, String source) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("Template in " + source + " has no name.");
+		}
+		if (conceptTemplates.put(name, conceptTemplate) != null) {
+			throw new IllegalArgumentException("Template with name '" + name + "' is included more than once.");
+		}
+	}
+
+	/**
+	 * Writes all templates, ordered by name, in a form {@link #importTemplates(InputStream, TemplateArchiveFormat)} accepts.
+	 */
+	public void exportTemplates(OutputStream outputStream, TemplateArchiveFormat format) throws IOException {
+		List<ConceptTemplate> conceptTemplates = new ArrayList<>(templateStore.loadAll());
+		conceptTemplates.sort(Comparator.comparing(ConceptTemplate::getName));
+		if (TemplateArchiveFormat.ZIP == format) {
+			ZipOutputStream zip = new ZipOutputStream(outputStream);
+			for (ConceptTemplate conceptTemplate : conceptTemplates) {
+				zip.putNextEntry(new ZipEntry(conceptTemplate.getName().replace("/", "%2F") + JSON_EXTENSION));
+				zip.write(objectMapper.writeValueAsBytes(conceptTemplate));
+				zip.closeEntry();
+			}
+			zip.finish();
+		} else {
+			for (ConceptTemplate conceptTemplate : conceptTemplates) {
+				outputStream.write(objectMapper.writeValueAsBytes(conceptTemplate));
+				outputStream.write('\n');
+			}
+		}
+		outputStream.flush();
+	}
+
 	public void writeEmptyInputFile(String templateName, OutputStream outputStream) throws IOException, ResourceNotFoundException {
 		ConceptTemplate template = loadOrThrow(templateName);
 		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8))) {
@@ -152,5 +333,37 @@ public class TemplateService {
 
 	public void reloadCache() throws IOException, ServiceException {
 		templateStore.init();
+		focusConceptFilterCache.invalidateAll();
+	}
+
+	private static final class FocusConceptFilterKey {
+
+		private final String branchPath;
+		private final String focusConcept;
+		private final List<String> descendantOf;
+		private final List<String> ancestorOf;
+
+		private FocusConceptFilterKey(String branchPath, String focusConcept, String[] descendantOf, String[] ancestorOf) {
+			this.branchPath = branchPath;
+			this.focusConcept = focusConcept;
+			this.descendantOf = descendantOf != null ? Arrays.asList(descendantOf.clone()) : null;
+			this.ancestorOf = ancestorOf != null ? Arrays.asList(ancestorOf.clone()) : null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			FocusConceptFilterKey that = (FocusConceptFilterKey) o;
+			return Objects.equals(branchPath, that.branchPath) &&
+					Objects.equals(focusConcept, that.focusConcept) &&
+					Objects.equals(descendantOf, that.descendantOf) &&
+					Objects.equals(ancestorOf, that.ancestorOf);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(branchPath, focusConcept, descendantOf, ancestorOf);
+		}
 	}
 }
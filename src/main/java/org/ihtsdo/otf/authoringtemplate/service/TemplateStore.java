@@ -2,12 +2,18 @@ package org.ihtsdo.otf.authoringtemplate.service;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.LongSummaryStatistics;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 
@@ -29,12 +35,14 @@ import org.snomed.authoringtemplate.domain.logical.AttributeGroup;
 import org.snomed.authoringtemplate.domain.logical.LogicalTemplate;
 import org.snomed.authoringtemplate.service.LogicalTemplateParserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
 public class TemplateStore {
 
-	private Map<String, ConceptTemplate> templateCache;
+	// Immutable snapshot, replaced as a whole so readers never see a partially built cache
+	private volatile Map<String, CompiledTemplate> templateCache;
 
 	@Autowired
 	private LogicalTemplateParserService logicalParserService;
@@ -42,32 +50,87 @@ public class TemplateStore {
 	@Autowired
 	private JsonStore jsonStore;
 
+	@Value("${templateStore.load.parallel}")
+	private boolean parallelLoad;
+
+	@Value("${templateStore.load.parallelism}")
+	private int loadParallelism;
+
 	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	public TemplateStore() throws IOException {
-		templateCache = new HashMap<>();
+		templateCache = Collections.emptyMap();
 	}
 
 	/**
 	 * Init method loads all templates from disk into cache.
 	 * Call again if the templates on disk are changed from outside this application.
+	 * The new cache is built aside and swapped in once complete so concurrent readers are not affected.
 	 * @throws IOException
 	 */
 	@PostConstruct
-	public void init() throws IOException, ServiceException {
+	public synchronized void init() throws IOException, ServiceException {
 		logger.info("Loading templates into cache.");
-		templateCache.clear();
+		long start = System.currentTimeMillis();
+		Map<String, CompiledTemplate> newCache = parallelLoad ? loadAllInParallel() : loadAllSequentially();
+		templateCache = Collections.unmodifiableMap(newCache);
+		logger.info("{} templates loaded into cache in {} ms.", newCache.size(), System.currentTimeMillis() - start);
+	}
+
+	private Map<String, CompiledTemplate> loadAllSequentially() throws IOException, ServiceException {
+		Map<String, CompiledTemplate> newCache = new HashMap<>();
 		Set<ConceptTemplate> conceptTemplates = jsonStore.loadAll(ConceptTemplate.class);
 		for (ConceptTemplate template : conceptTemplates) {
-			generateAndCache(template);
+			newCache.put(encodeSlash(template.getName()), generate(template));
+		}
+		return newCache;
+	}
+
+	/**
+	 * Reads and parses all templates on a dedicated fork-join pool.
+	 * Every failing template is collected and reported together rather than aborting on the first one.
+	 */
+	private Map<String, CompiledTemplate> loadAllInParallel() throws ServiceException {
+		Map<String, CompiledTemplate> newCache = new ConcurrentHashMap<>();
+		Map<String, String> failures = new ConcurrentHashMap<>();
+		Map<String, Long> durations = new ConcurrentHashMap<>();
+		ForkJoinPool pool = new ForkJoinPool(loadParallelism);
+		try {
+			pool.submit(() -> jsonStore.listNames().parallelStream().forEach(name -> {
+				long start = System.currentTimeMillis();
+				try {
+					ConceptTemplate template = jsonStore.load(name, ConceptTemplate.class);
+					newCache.put(encodeSlash(template.getName()), generate(template));
+				} catch (ServiceException e) {
+					// Already logged with its stack trace by generate
+					failures.put(name, e.getMessage());
+				} catch (IOException | RuntimeException e) {
+					logger.error("Failed to read template file {}", name, e);
+					failures.put(name, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+				}
+				durations.put(name, System.currentTimeMillis() - start);
+			})).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while loading templates.", e);
+		} catch (ExecutionException e) {
+			throw new ServiceException("Failed to load templates.", e);
+		} finally {
+			pool.shutdown();
 		}
-		logger.info("{} templates loaded into cache.", templateCache.size());
+		LongSummaryStatistics stats = durations.values().stream().mapToLong(Long::longValue).summaryStatistics();
+		logger.info("Loaded {} template files using {} threads, per template ms min={} avg={} max={}",
+				stats.getCount(), loadParallelism, stats.getMin(), String.format("%.1f", stats.getAverage()), stats.getMax());
+		if (!failures.isEmpty()) {
+			// Each failure has already been logged with its stack trace
+			throw new ServiceException(String.format("Failed to load %s templates %s", failures.size(), new TreeMap<>(failures)));
+		}
+		return newCache;
 	}
 
-	private void generateAndCache(ConceptTemplate template) throws ServiceException {
+	private CompiledTemplate generate(ConceptTemplate template) throws ServiceException {
 		try {
-			generateTemporalParts(template);
-			templateCache.put(encodeSlash(template.getName()), template);
+			return new CompiledTemplate(template, generateTemporalParts(template));
 		} catch (Exception e) {
 			String errorMsg = String.format("Failed to load template %s", template.getName());
 			logger.error(errorMsg, e);
@@ -80,18 +143,81 @@ public class TemplateStore {
 	}
 
 	public ConceptTemplate load(String name) {
-		return templateCache.get(name);
+		CompiledTemplate compiled = templateCache.get(name);
+		return compiled != null ? compiled.getTemplate() : null;
 	}
 
 	public Set<ConceptTemplate> loadAll() {
-		return new HashSet<>(templateCache.values());
+		return templateCache.values().stream().map(CompiledTemplate::getTemplate).collect(Collectors.toSet());
 	}
 
-	public void save(String name, ConceptTemplate conceptTemplate) throws IOException, ServiceException {
+	/**
+	 * Returns the parsed form of the given template.
+	 * The cached entry is used when it was compiled from the same version, otherwise the template is parsed on demand.
+	 */
+	public CompiledTemplate getCompiledTemplate(ConceptTemplate conceptTemplate) throws ServiceException {
+		CompiledTemplate compiled = conceptTemplate.getName() != null ? templateCache.get(encodeSlash(conceptTemplate.getName())) : null;
+		if (compiled != null && compiled.isCompiledFrom(conceptTemplate)) {
+			return compiled;
+		}
+		try {
+			return new CompiledTemplate(conceptTemplate, logicalParserService.parseTemplate(conceptTemplate.getLogicalTemplate()));
+		} catch (IOException e) {
+			throw new ServiceException("Failed to parse logical template " + conceptTemplate.getName(), e);
+		}
+	}
+
+	public synchronized void save(String name, ConceptTemplate conceptTemplate) throws IOException, ServiceException {
 		conceptTemplate.setName(name);
 		stripTemporalParts(conceptTemplate);
 		jsonStore.save(name, conceptTemplate);
-		generateAndCache(conceptTemplate);
+		CompiledTemplate compiled = generate(conceptTemplate);
+		Map<String, CompiledTemplate> newCache = new HashMap<>(templateCache);
+		newCache.put(encodeSlash(conceptTemplate.getName()), compiled);
+		templateCache = Collections.unmodifiableMap(newCache);
+	}
+
+	/**
+	 * Saves many templates together. The templates are parsed in parallel and nothing is saved if any of them fail.
+	 * The files are then written with one group commit and the cache is swapped once to include all of them.
+	 * @throws IllegalArgumentException listing every template which failed to parse
+	 */
+	public synchronized void saveAll(Map<String, ConceptTemplate> conceptTemplates) throws IOException, ServiceException {
+		Map<String, byte[]> files = new ConcurrentHashMap<>();
+		Map<String, CompiledTemplate> compiledTemplates = new ConcurrentHashMap<>();
+		Map<String, String> failures = new ConcurrentHashMap<>();
+		ForkJoinPool pool = new ForkJoinPool(loadParallelism);
+		try {
+			pool.submit(() -> conceptTemplates.entrySet().parallelStream().forEach(entry -> {
+				String name = entry.getKey();
+				ConceptTemplate conceptTemplate = entry.getValue();
+				try {
+					conceptTemplate.setName(name);
+					stripTemporalParts(conceptTemplate);
+					// Stored without the temporal parts which are generated when compiling
+					files.put(name, jsonStore.toJson(conceptTemplate));
+					compiledTemplates.put(encodeSlash(name), generate(conceptTemplate));
+				} catch (IOException | ServiceException | RuntimeException e) {
+					Throwable cause = e.getCause() != null ? e.getCause() : e;
+					failures.put(name, cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName());
+				}
+			})).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while saving templates.", e);
+		} catch (ExecutionException e) {
+			throw new ServiceException("Failed to save templates.", e);
+		} finally {
+			pool.shutdown();
+		}
+		if (!failures.isEmpty()) {
+			throw new IllegalArgumentException(String.format("%s templates are not valid, none were saved. %s", failures.size(), new TreeMap<>(failures)));
+		}
+		jsonStore.saveAllJson(files);
+		Map<String, CompiledTemplate> newCache = new HashMap<>(templateCache);
+		newCache.putAll(compiledTemplates);
+		templateCache = Collections.unmodifiableMap(newCache);
+		logger.info("{} templates saved.", compiledTemplates.size());
 	}
 
 	private void stripTemporalParts(ConceptTemplate conceptTemplate) {
@@ -100,12 +226,13 @@ public class TemplateStore {
 		conceptTemplate.getConceptOutline().getDescriptions().forEach(d -> d.setInitialTerm(null));
 	}
 
-	private void generateTemporalParts(ConceptTemplate conceptTemplate) throws IOException, ServiceException {
+	private LogicalTemplate generateTemporalParts(ConceptTemplate conceptTemplate) throws IOException, ServiceException {
 		final LogicalTemplate logicalTemplate = logicalParserService.parseTemplate(conceptTemplate.getLogicalTemplate());
 		conceptTemplate.setFocusConcept(logicalTemplate.getFocusConcepts().isEmpty() ? null : logicalTemplate.getFocusConcepts().get(0));
 		updateConceptOutlineWithClassAxioms(conceptTemplate.getConceptOutline(), logicalTemplate);
 		TemplateUtil.validateTermSlots(conceptTemplate, true);
 		updateDescriptions(conceptTemplate.getLexicalTemplates(), conceptTemplate.getConceptOutline().getDescriptions(), conceptTemplate.getAdditionalSlots());
+		return logicalTemplate;
 	}
 
 	private void updateConceptOutlineWithClassAxioms(ConceptOutline conceptOutline, LogicalTemplate logicalTemplate) {
@@ -213,6 +340,6 @@ public class TemplateStore {
 	}
 
 	public void clear() {
-		templateCache.clear();
+		templateCache = Collections.emptyMap();
 	}
 }
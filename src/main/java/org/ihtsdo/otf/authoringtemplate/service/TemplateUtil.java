@@ -32,7 +32,7 @@ public class TemplateUtil {
 		result = result.replace("(", "\\(");
 		result = result.replace(")", "\\)");
 		result = result.replace(".+","(.+)");
-		LOGGER.info("term pattern regex=" + result);
+		LOGGER.debug("term pattern regex={}", result);
 		Pattern pattern = Pattern.compile(result);
 		return pattern;
 	}
@@ -0,0 +1,74 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+/**
+ * Chooses how many concepts go into the next batch of a transformation from the batches completed so far.
+ * The time taken and the number of descriptions and relationships loaded per concept are smoothed across batches,
+ * and the batch size is set so that a batch takes about the target time without loading more than the component limit.
+ * The size changes by at most a factor of two per batch and always stays within the configured bounds.
+ */
+public class AdaptiveBatchSizer {
+
+	// Weight given to the latest batch in the smoothed averages
+	private static final double SMOOTHING = 0.3;
+
+	private final int minSize;
+
+	private final int maxSize;
+
+	private final long targetMillis;
+
+	private final int maxComponents;
+
+	private int currentSize;
+
+	private double millisPerConcept = -1;
+
+	private double componentsPerConcept = -1;
+
+	public AdaptiveBatchSizer(int minSize, int maxSize, int initialSize, long targetMillis, int maxComponents) {
+		if (minSize < 1 || maxSize < minSize) {
+			throw new IllegalArgumentException(String.format("Invalid batch size bounds %d to %d", minSize, maxSize));
+		}
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.targetMillis = targetMillis;
+		this.maxComponents = maxComponents;
+		this.currentSize = clamp(initialSize);
+	}
+
+	public synchronized int nextBatchSize() {
+		return currentSize;
+	}
+
+	/**
+	 * Adjusts the size of the following batches using a completed batch.
+	 * @param conceptCount concepts in the batch
+	 * @param componentCount descriptions and relationships loaded for those concepts
+	 * @param elapsedMillis time taken to transform the batch
+	 */
+	public synchronized void recordBatch(int conceptCount, int componentCount, long elapsedMillis) {
+		if (conceptCount == 0) {
+			return;
+		}
+		millisPerConcept = smooth(millisPerConcept, (double) elapsedMillis / conceptCount);
+		componentsPerConcept = smooth(componentsPerConcept, (double) componentCount / conceptCount);
+
+		double bestSize = maxSize;
+		if (millisPerConcept > 0) {
+			bestSize = Math.min(bestSize, targetMillis / millisPerConcept);
+		}
+		if (componentsPerConcept > 0) {
+			bestSize = Math.min(bestSize, maxComponents / componentsPerConcept);
+		}
+		int next = (int) Math.max(currentSize / 2.0, Math.min(currentSize * 2.0, bestSize));
+		currentSize = clamp(next);
+	}
+
+	private double smooth(double average, double value) {
+		return average < 0 ? value : SMOOTHING * value + (1 - SMOOTHING) * average;
+	}
+
+	private int clamp(int size) {
+		return Math.max(minSize, Math.min(maxSize, size));
+	}
+}
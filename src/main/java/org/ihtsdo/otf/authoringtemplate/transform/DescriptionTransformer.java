@@ -26,9 +26,11 @@ import org.snomed.authoringtemplate.domain.Description;
 public class DescriptionTransformer {
 
 	private ConceptPojo conceptToTransform;
-	private Map<String, Set<DescriptionPojo>> slotValueMap;
+	private Map<String, DescriptionPojo> slotFsnValueMap;
+	private Map<String, List<DescriptionPojo>> slotPtValueMap;
 	private String inactivationReason;
 	private ConceptTemplate conceptTemplate;
+	private boolean descriptionsChanged;
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(DescriptionTransformer.class);
 
@@ -40,9 +42,22 @@ public class DescriptionTransformer {
 
 	public DescriptionTransformer(ConceptPojo conceptToTransform, ConceptTemplate conceptTemplate,
 			Map<String, Set<DescriptionPojo>> slotValueMap, String inactivationReason) {
+		this(conceptToTransform, conceptTemplate, new HashMap<>(), new HashMap<>(), inactivationReason);
+		for (String slot : slotValueMap.keySet()) {
+			slotFsnValueMap.put(slot, LexicalTemplateTransformService.getActiveFsn(slotValueMap.get(slot)));
+			slotPtValueMap.put(slot, LexicalTemplateTransformService.getActivePreferredTerms(slotValueMap.get(slot)));
+		}
+	}
+
+	/**
+	 * Uses FSNs and preferred terms of the slot values already picked out, which can be shared by all concepts of a batch.
+	 */
+	public DescriptionTransformer(ConceptPojo conceptToTransform, ConceptTemplate conceptTemplate,
+			Map<String, DescriptionPojo> slotFsnValueMap, Map<String, List<DescriptionPojo>> slotPtValueMap, String inactivationReason) {
 		this.conceptToTransform = conceptToTransform;
 		this.conceptTemplate = conceptTemplate;
-		this.slotValueMap = slotValueMap;
+		this.slotFsnValueMap = slotFsnValueMap;
+		this.slotPtValueMap = slotPtValueMap;
 		this.inactivationReason = inactivationReason;
 	}
 
@@ -60,7 +75,7 @@ public class DescriptionTransformer {
 		}
 		
 		List<Description> lexicalTransformed = LexicalTemplateTransformService.transformDescriptions(conceptTemplate.getLexicalTemplates(), 
-				conceptOutline.getDescriptions(), slotValueMap);
+				conceptOutline.getDescriptions(), slotFsnValueMap, slotPtValueMap);
 		List<DescriptionPojo> newDescriptions = new ArrayList<>();
 		String newFsn = null;
 		List<String> newPts = new ArrayList<>();
@@ -80,7 +95,9 @@ public class DescriptionTransformer {
 			} else {
 				// Update Acceptability
 				if (desc.getAcceptabilityMap() != null && !desc.getAcceptabilityMap().isEmpty()) {
-					previousActiveTermMap.get(term).setAcceptabilityMap(desc.getAcceptabilityMap());
+					DescriptionPojo previous = previousActiveTermMap.get(term);
+					descriptionsChanged |= !desc.getAcceptabilityMap().equals(previous.getAcceptabilityMap());
+					previous.setAcceptabilityMap(desc.getAcceptabilityMap());
 				}
 			}
 		}
@@ -94,11 +111,13 @@ public class DescriptionTransformer {
 					pojo.setActive(false);
 					pojo.setInactivationIndicator(inactivationReason);
 					pojo.setEffectiveTime(null);
+					descriptionsChanged = true;
 				}
 			} else if (SYNONYM.name().equals(pojo.getType())){
 				if (pojo.getAcceptabilityMap() != null && pojo.getAcceptabilityMap().values().contains(PREFERRED)) {
 					if (!newPts.contains(pojo.getTerm())) {
 						updateAcceptabilityMap(pojo.getAcceptabilityMap(), ACCEPTABLE);
+						descriptionsChanged = true;
 					}
 				}
 			}
@@ -113,6 +132,7 @@ public class DescriptionTransformer {
 				counter++;
 			}
 		}
+		descriptionsChanged |= !newDescriptions.isEmpty() || counter > 0;
 		if (counter > 0) {
 			LOGGER.info("Total unpublished inactive descriptions removed:" + counter);
 		}
@@ -124,6 +144,13 @@ public class DescriptionTransformer {
 		conceptToTransform.setDescriptions(descriptions);
 	}
 
+	/**
+	 * @return whether {@link #transform()} added, inactivated, removed or changed the acceptability of any description.
+	 */
+	public boolean isDescriptionsChanged() {
+		return descriptionsChanged;
+	}
+
 	private void updateAcceptabilityMap(Map<String, String> acceptabilityMap, String newValue) {
 		for (String refsetId : acceptabilityMap.keySet()) {
 			acceptabilityMap.put(refsetId, newValue);
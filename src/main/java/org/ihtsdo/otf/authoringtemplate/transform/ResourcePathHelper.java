@@ -6,6 +6,12 @@ public class ResourcePathHelper {
 
 	private static final String STATUS_JSON = "status.json";
 
+	private static final String BATCHES = "batches/";
+
+	private static final String JOURNAL_JSON = "journal.json";
+
+	private static final String ACTIVE_TRANSFORMATIONS_JSON = "active-transformations.json";
+
 	public static String getResultPath(String transformationId) {
 		return getFilePath(transformationId, RESULTS_JSON);
 	}
@@ -14,6 +20,30 @@ public class ResourcePathHelper {
 		return getFilePath(transformationId, STATUS_JSON);
 	}
 	
+	public static String getBatchResultPath(String transformationId, int batchIndex) {
+		return getFilePath(transformationId, BATCHES + batchIndex + ".json");
+	}
+
+	public static String getBatchConceptsPath(String transformationId, int batchIndex, boolean compressed) {
+		return getFilePath(transformationId, BATCHES + batchIndex + (compressed ? ".ndjson.gz" : ".ndjson"));
+	}
+
+	public static String getBatchFailuresPath(String transformationId, int batchIndex) {
+		return getFilePath(transformationId, BATCHES + batchIndex + "-failures.json");
+	}
+
+	public static String getBatchIndexPath(String transformationId, int batchIndex) {
+		return getFilePath(transformationId, BATCHES + batchIndex + "-index.json");
+	}
+
+	public static String getJournalPath(String transformationId) {
+		return getFilePath(transformationId, JOURNAL_JSON);
+	}
+
+	public static String getActiveTransformationsPath() {
+		return ACTIVE_TRANSFORMATIONS_JSON;
+	}
+
 	private static String getFilePath(String transformationId, String relativePath) {
 		return transformationId + "/" + relativePath;
 	}
@@ -13,6 +13,15 @@ public class TemplateTransformation {
 	private Date createdDate;
 	private Date lastUpdatedDate;
 	private TemplateTransformRequest transformRequest;
+	private int totalConcepts;
+	private int processedConcepts;
+	private int failedConcepts;
+	private int totalBatches;
+	private int completedBatches;
+	private int lastBatchSize;
+	private int smallestBatchSize;
+	private int largestBatchSize;
+	private TransformationResultFormat resultFormat;
 
 	public TemplateTransformation(String branchPath, TemplateTransformRequest transformRequest) {
 		this.branchPath = branchPath;
@@ -77,6 +86,100 @@ public class TemplateTransformation {
 		this.lastUpdatedDate = lastUpdatedDate;
 	}
 
+	public int getTotalConcepts() {
+		return totalConcepts;
+	}
+
+	public void setTotalConcepts(int totalConcepts) {
+		this.totalConcepts = totalConcepts;
+	}
+
+	public int getProcessedConcepts() {
+		return processedConcepts;
+	}
+
+	public void setProcessedConcepts(int processedConcepts) {
+		this.processedConcepts = processedConcepts;
+	}
+
+	public int getFailedConcepts() {
+		return failedConcepts;
+	}
+
+	public void setFailedConcepts(int failedConcepts) {
+		this.failedConcepts = failedConcepts;
+	}
+
+	public int getTotalBatches() {
+		return totalBatches;
+	}
+
+	public void setTotalBatches(int totalBatches) {
+		this.totalBatches = totalBatches;
+	}
+
+	public int getCompletedBatches() {
+		return completedBatches;
+	}
+
+	public void setCompletedBatches(int completedBatches) {
+		this.completedBatches = completedBatches;
+	}
+
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	public void setLastBatchSize(int lastBatchSize) {
+		this.lastBatchSize = lastBatchSize;
+	}
+
+	public int getSmallestBatchSize() {
+		return smallestBatchSize;
+	}
+
+	public void setSmallestBatchSize(int smallestBatchSize) {
+		this.smallestBatchSize = smallestBatchSize;
+	}
+
+	public int getLargestBatchSize() {
+		return largestBatchSize;
+	}
+
+	public void setLargestBatchSize(int largestBatchSize) {
+		this.largestBatchSize = largestBatchSize;
+	}
+
+	/**
+	 * @return how batch results are stored, null for transformations from before the format was recorded which use JSON.
+	 */
+	public TransformationResultFormat getResultFormat() {
+		return resultFormat;
+	}
+
+	public void setResultFormat(TransformationResultFormat resultFormat) {
+		this.resultFormat = resultFormat;
+	}
+
+	/**
+	 * Counts a newly formed batch and the number of concepts chosen for it.
+	 */
+	public void recordBatchSize(int batchSize) {
+		totalBatches++;
+		lastBatchSize = batchSize;
+		smallestBatchSize = smallestBatchSize == 0 ? batchSize : Math.min(smallestBatchSize, batchSize);
+		largestBatchSize = Math.max(largestBatchSize, batchSize);
+	}
+
+	/**
+	 * Adds a completed batch to the progress counters.
+	 */
+	public void recordBatch(int conceptCount, int failedCount) {
+		completedBatches++;
+		processedConcepts += conceptCount;
+		failedConcepts += failedCount;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -93,6 +196,11 @@ public class TemplateTransformation {
 			builder.append("status=").append(status).append(", ");
 		if (errorMsg != null)
 			builder.append("errorMsg=").append(errorMsg).append(", ");
+		if (totalBatches > 0)
+			builder.append("processedConcepts=").append(processedConcepts).append("/").append(totalConcepts)
+					.append(", failedConcepts=").append(failedConcepts)
+					.append(", batches=").append(completedBatches).append("/").append(totalBatches)
+					.append(", batchSizes=").append(smallestBatchSize).append("-").append(largestBatchSize).append(", ");
 		if (lastUpdatedDate != null)
 			builder.append("lastUpdatedDate=").append(lastUpdatedDate);
 		builder.append("]");
@@ -0,0 +1,104 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.ihtsdo.otf.authoringtemplate.service.LexicalTemplateTransformService;
+import org.ihtsdo.otf.authoringtemplate.service.TemplateUtil;
+import org.ihtsdo.otf.rest.client.RestClientException;
+import org.ihtsdo.otf.rest.client.terminologyserver.SnowOwlRestClient;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
+
+/**
+ * Terminology lookups shared by all batches of one transformation on one branch.
+ * Holds the descriptions of slot target concepts and which concepts are within each slot's allowable range,
+ * so each concept is only requested from the terminology server once per transformation.
+ */
+public class TransformationConceptCache {
+
+	private final String branchPath;
+
+	private final Map<String, Set<DescriptionPojo>> descriptionsByConceptId = new ConcurrentHashMap<>();
+
+	private final Set<String> notFound = ConcurrentHashMap.newKeySet();
+
+	private final Map<String, DescriptionPojo> fsnByConceptId = new ConcurrentHashMap<>();
+
+	private final Map<String, List<DescriptionPojo>> preferredTermsByConceptId = new ConcurrentHashMap<>();
+
+	// Allowable range ECL to concept id to whether the concept is within the range
+	private final Map<String, Map<String, Boolean>> rangeMembership = new ConcurrentHashMap<>();
+
+	public TransformationConceptCache(String branchPath) {
+		this.branchPath = branchPath;
+	}
+
+	public String getBranchPath() {
+		return branchPath;
+	}
+
+	/**
+	 * Loads the descriptions of any of the given concepts not fetched before, in a single request.
+	 */
+	public void prefetchDescriptions(SnowOwlRestClient restClient, Collection<String> conceptIds) throws RestClientException {
+		List<String> missing = conceptIds.stream()
+				.distinct()
+				.filter(id -> !descriptionsByConceptId.containsKey(id) && !notFound.contains(id))
+				.collect(Collectors.toList());
+		if (missing.isEmpty()) {
+			return;
+		}
+		List<ConceptPojo> concepts = restClient.searchConcepts(branchPath, missing);
+		if (concepts != null) {
+			for (ConceptPojo concept : concepts) {
+				descriptionsByConceptId.put(concept.getConceptId(), concept.getDescriptions());
+			}
+		}
+		missing.stream().filter(id -> !descriptionsByConceptId.containsKey(id)).forEach(notFound::add);
+	}
+
+	/**
+	 * @return the descriptions of a prefetched concept or null when the concept wasn't found on the branch.
+	 */
+	public Set<DescriptionPojo> getDescriptions(String conceptId) {
+		return descriptionsByConceptId.get(conceptId);
+	}
+
+	/**
+	 * @return the active FSN of a prefetched concept, picked out once and shared by all concepts using it as a slot value,
+	 * or null when the concept has no active FSN.
+	 */
+	public DescriptionPojo getFsn(String conceptId) {
+		return fsnByConceptId.computeIfAbsent(conceptId, id -> LexicalTemplateTransformService.getActiveFsn(descriptionsByConceptId.get(id)));
+	}
+
+	/**
+	 * @return the active preferred terms of a prefetched concept, picked out once and shared by all concepts using it as a slot value.
+	 */
+	public List<DescriptionPojo> getPreferredTerms(String conceptId) {
+		return preferredTermsByConceptId.computeIfAbsent(conceptId, id -> LexicalTemplateTransformService.getActivePreferredTerms(descriptionsByConceptId.get(id)));
+	}
+
+	/**
+	 * @return the given concepts which are within the range. Only concepts not checked against this range before are queried.
+	 */
+	public Set<String> filterWithinRange(SnowOwlRestClient restClient, String rangeEcl, Collection<String> conceptIds) throws RestClientException {
+		Map<String, Boolean> membership = rangeMembership.computeIfAbsent(rangeEcl, k -> new ConcurrentHashMap<>());
+		List<String> unknown = conceptIds.stream()
+				.distinct()
+				.filter(id -> !membership.containsKey(id))
+				.collect(Collectors.toList());
+		if (!unknown.isEmpty()) {
+			Set<String> withinRange = restClient.eclQuery(branchPath, TemplateUtil.constructRangeValidationEcl(rangeEcl, unknown), unknown.size());
+			for (String conceptId : unknown) {
+				membership.put(conceptId, withinRange.contains(conceptId));
+			}
+		}
+		return conceptIds.stream().filter(membership::get).collect(Collectors.toSet());
+	}
+}
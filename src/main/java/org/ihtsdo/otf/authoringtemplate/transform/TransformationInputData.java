@@ -13,6 +13,8 @@ public class TransformationInputData {
 	private Map<String, ConceptMiniPojo> conceptIdMap;
 	private Map<String, Attribute> slotToAttributeTypeMap;
 	private TemplateTransformRequest transformRequest;
+	private TransformationConceptCache conceptCache;
+	private AdaptiveBatchSizer batchSizer;
 
 	public TransformationInputData(TemplateTransformRequest transformRequest) {
 		this.transformRequest = transformRequest;
@@ -61,4 +63,20 @@ public class TransformationInputData {
 	public Map<String, Attribute> getDestinationSlotToAttributeMap() {
 		return this.slotToAttributeTypeMap;
 	}
+
+	public TransformationConceptCache getConceptCache() {
+		return conceptCache;
+	}
+
+	public void setConceptCache(TransformationConceptCache conceptCache) {
+		this.conceptCache = conceptCache;
+	}
+
+	public AdaptiveBatchSizer getBatchSizer() {
+		return batchSizer;
+	}
+
+	public void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+		this.batchSizer = batchSizer;
+	}
 }
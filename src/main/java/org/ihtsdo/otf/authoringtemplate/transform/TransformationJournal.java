@@ -0,0 +1,93 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Durable record of how a transformation was split into batches and which batches have finished,
+ * so that an interrupted transformation can carry on from its last checkpoint.
+ * Batches are added as they are formed, so concepts not in any batch yet haven't been started.
+ */
+public class TransformationJournal {
+
+	private List<List<String>> batches;
+
+	// Batch index to the number of concepts which failed in that batch
+	private Map<Integer, Integer> completedBatches;
+
+	public TransformationJournal() {
+		completedBatches = new HashMap<>();
+	}
+
+	public TransformationJournal(List<List<String>> batches) {
+		this();
+		this.batches = new ArrayList<>(batches);
+	}
+
+	/**
+	 * @return the index of the batch added.
+	 */
+	public int addBatch(List<String> conceptIds) {
+		batches.add(conceptIds);
+		return batches.size() - 1;
+	}
+
+	/**
+	 * @return the concepts to transform which haven't been put in a batch yet.
+	 */
+	public List<String> getUnbatchedConcepts(Collection<String> conceptsToTransform) {
+		Set<String> batched = new HashSet<>();
+		batches.forEach(batched::addAll);
+		List<String> unbatched = new ArrayList<>();
+		for (String conceptId : conceptsToTransform) {
+			if (!batched.contains(conceptId)) {
+				unbatched.add(conceptId);
+			}
+		}
+		return unbatched;
+	}
+
+	public List<List<String>> getBatches() {
+		return batches;
+	}
+
+	public void setBatches(List<List<String>> batches) {
+		this.batches = batches;
+	}
+
+	public Map<Integer, Integer> getCompletedBatches() {
+		return completedBatches;
+	}
+
+	public void setCompletedBatches(Map<Integer, Integer> completedBatches) {
+		this.completedBatches = completedBatches;
+	}
+
+	public void recordCompleted(int batchIndex, int failedCount) {
+		completedBatches.put(batchIndex, failedCount);
+	}
+
+	/**
+	 * Resets the progress counters of the transformation to what the journal has recorded.
+	 */
+	public void restoreProgress(TemplateTransformation transformation) {
+		int processed = 0;
+		int failed = 0;
+		for (Map.Entry<Integer, Integer> entry : completedBatches.entrySet()) {
+			processed += batches.get(entry.getKey()).size();
+			failed += entry.getValue();
+		}
+		transformation.setTotalBatches(0);
+		transformation.setSmallestBatchSize(0);
+		transformation.setLargestBatchSize(0);
+		batches.forEach(batch -> transformation.recordBatchSize(batch.size()));
+		transformation.setCompletedBatches(completedBatches.size());
+		transformation.setProcessedConcepts(processed);
+		transformation.setFailedConcepts(failed);
+	}
+}
@@ -1,8 +1,10 @@
 package org.ihtsdo.otf.authoringtemplate.transform;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
 
@@ -10,9 +12,12 @@ public class TransformationResult {
 	
 	private List<ConceptPojo> concepts;
 	private Map<String, String> failures;
+	// Only kept until the batch result and its index are written
+	private transient Set<String> descriptionsChanged;
 	
 	public TransformationResult() {
 		concepts = new ArrayList<>();
+		descriptionsChanged = new HashSet<>();
 	}
 	
 	public void addTransformedConcept(ConceptPojo transformed) {
@@ -34,4 +39,8 @@ public class TransformationResult {
 	public Map<String, String> getFailures() {
 		return failures;
 	}
+
+	public Set<String> getDescriptionsChanged() {
+		return descriptionsChanged;
+	}
 }
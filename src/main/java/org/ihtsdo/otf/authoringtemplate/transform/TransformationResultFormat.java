@@ -0,0 +1,11 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+/**
+ * How the batch results of a transformation are stored.
+ * JSON is one pretty printed result document per batch, as written before the line delimited formats.
+ * NDJSON holds one transformed concept per line with the failures in a separate document, and NDJSON_GZIP compresses the concepts.
+ */
+public enum TransformationResultFormat {
+
+	JSON, NDJSON, NDJSON_GZIP
+}
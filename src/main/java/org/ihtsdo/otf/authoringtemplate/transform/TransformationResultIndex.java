@@ -0,0 +1,39 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Written alongside the line delimited results of a batch so that a page of results can be picked out
+ * without reading the records of other concepts.
+ */
+public class TransformationResultIndex {
+
+	// Transformed concept ids in the order of their records in the batch file
+	private List<String> conceptIds;
+
+	private Set<String> descriptionsChanged;
+
+	public TransformationResultIndex() {
+		conceptIds = new ArrayList<>();
+		descriptionsChanged = new HashSet<>();
+	}
+
+	public List<String> getConceptIds() {
+		return conceptIds;
+	}
+
+	public void setConceptIds(List<String> conceptIds) {
+		this.conceptIds = conceptIds;
+	}
+
+	public Set<String> getDescriptionsChanged() {
+		return descriptionsChanged;
+	}
+
+	public void setDescriptionsChanged(Set<String> descriptionsChanged) {
+		this.descriptionsChanged = descriptionsChanged;
+	}
+}
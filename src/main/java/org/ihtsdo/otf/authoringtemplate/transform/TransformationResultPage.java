@@ -0,0 +1,52 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
+
+/**
+ * One page of the results of a transformation. Total is the number of concepts, or of failures when only failures
+ * were requested, matching the filters.
+ */
+public class TransformationResultPage {
+
+	private int offset;
+	private int limit;
+	private int total;
+	private List<ConceptPojo> concepts;
+	private Map<String, String> failures;
+
+	public TransformationResultPage(int offset, int limit) {
+		this.offset = offset;
+		this.limit = limit;
+		concepts = new ArrayList<>();
+		failures = new LinkedHashMap<>();
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public void setTotal(int total) {
+		this.total = total;
+	}
+
+	public List<ConceptPojo> getConcepts() {
+		return concepts;
+	}
+
+	public Map<String, String> getFailures() {
+		return failures;
+	}
+}
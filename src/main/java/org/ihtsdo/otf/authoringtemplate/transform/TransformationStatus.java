@@ -2,5 +2,5 @@ package org.ihtsdo.otf.authoringtemplate.transform;
 
 public enum TransformationStatus {
 
-	QUEUED, RUNNING, FAILED, COMPLETED_WITH_FAILURE, COMPLETED
+	QUEUED, RUNNING, INTERRUPTED, FAILED, COMPLETED_WITH_FAILURE, COMPLETED
 }
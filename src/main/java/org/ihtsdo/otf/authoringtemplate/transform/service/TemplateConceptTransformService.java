@@ -1,11 +1,14 @@
 package org.ihtsdo.otf.authoringtemplate.transform.service;
 
+import org.ihtsdo.otf.authoringtemplate.service.CompiledTemplate;
 import org.ihtsdo.otf.authoringtemplate.service.TemplateService;
+import org.ihtsdo.otf.authoringtemplate.service.TemplateStore;
 import org.ihtsdo.otf.authoringtemplate.service.TemplateUtil;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.authoringtemplate.transform.*;
 import org.ihtsdo.otf.rest.client.RestClientException;
 import org.ihtsdo.otf.rest.client.terminologyserver.SnowOwlRestClient;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.AxiomPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptMiniPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
@@ -16,19 +19,19 @@ import org.snomed.authoringtemplate.domain.ConceptTemplate;
 import org.snomed.authoringtemplate.domain.DefinitionStatus;
 import org.snomed.authoringtemplate.domain.Relationship;
 import org.snomed.authoringtemplate.domain.logical.Attribute;
-import org.snomed.authoringtemplate.domain.logical.LogicalTemplate;
-import org.snomed.authoringtemplate.service.LogicalTemplateParserService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 @Service
@@ -39,89 +42,215 @@ public class TemplateConceptTransformService {
 	
 	@Autowired
 	private TemplateTransformationResultService resultService;
-	
-	private final ExecutorService executorService = Executors.newFixedThreadPool(10);
 
-	private final LogicalTemplateParserService parser;
+	@Autowired
+	private TemplateStore templateStore;
+	
+	@Autowired
+	private TransformationExecutor transformationExecutor;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(TemplateConceptTransformService.class);
 
+	@Value("${transformation.batch.min}")
+	private int batchMin;
+
 	@Value("${transformation.batch.max}")
 	private int batchMax;
 
-	public TemplateConceptTransformService() {
-		parser = new LogicalTemplateParserService();
-	}
+	@Value("${transformation.batch.initial}")
+	private int batchInitial;
+
+	@Value("${transformation.batch.targetMillis}")
+	private long batchTargetMillis;
+
+	@Value("${transformation.batch.maxComponents}")
+	private int batchMaxComponents;
 
 	@Async
 	public void transformAsynchronously(TemplateTransformation transformation, SnowOwlRestClient restClient) throws ServiceException {
-		transformation.setStatus(TransformationStatus.RUNNING);
-		resultService.update(transformation);
+		runBatches(transformation, restClient, false);
+	}
 
-		try {
-			// Start transformations in multiple threads
-			List<Future<TransformationResult>> futureTasks = transform(transformation, restClient);
+	/**
+	 * Continues an interrupted transformation, running only the batches its journal doesn't record as completed.
+	 */
+	@Async
+	public void resumeAsynchronously(TemplateTransformation transformation, SnowOwlRestClient restClient) throws ServiceException {
+		runBatches(transformation, restClient, true);
+	}
 
-			// Gather transformed concepts and any errors from the transformation jobs
+	/**
+	 * Checks that the transformation can be resumed and queues it.
+	 */
+	public TemplateTransformation prepareResume(String transformationId) throws ServiceException {
+		TemplateTransformation transformation = resultService.getTemplateTransformation(transformationId);
+		if (TransformationStatus.INTERRUPTED != transformation.getStatus()) {
+			throw new IllegalArgumentException("Only interrupted transformations can be resumed but transformation " + transformationId
+					+ " is " + transformation.getStatus());
+		}
+		transformation.setStatus(TransformationStatus.QUEUED);
+		transformation.setErrorMsg(null);
+		resultService.update(transformation);
+		return transformation;
+	}
+
+	/**
+	 * Transformations still queued or running according to storage were stopped by the last shutdown.
+	 * They are marked as interrupted so they can be resumed. Resuming needs the terminology server credentials
+	 * of a user, which aren't stored, so it is done through the resume endpoint rather than here.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void markInterruptedTransformations() {
+		for (String transformationId : resultService.getActiveTransformationIds()) {
 			try {
-				List<TransformationResult> transformationResults = new ArrayList<>();
-				for (Future<TransformationResult> future : futureTasks) {
-					transformationResults.add(future.get());
+				TemplateTransformation transformation = resultService.getTemplateTransformation(transformationId);
+				TransformationStatus status = transformation.getStatus();
+				if (TransformationStatus.QUEUED == status || TransformationStatus.RUNNING == status) {
+					transformation.setStatus(TransformationStatus.INTERRUPTED);
+					transformation.setErrorMsg("Interrupted by a service restart after " + transformation.getCompletedBatches()
+							+ " of " + transformation.getTotalBatches() + " batches. Resume to carry on from the last checkpoint.");
+					resultService.update(transformation);
+				} else if (TransformationStatus.INTERRUPTED != status) {
+					resultService.setActive(transformationId, false);
 				}
+			} catch (ResourceNotFoundException | ServiceException e) {
+				LOGGER.error("Failed to check status of transformation {}", transformationId, e);
+			}
+		}
+	}
 
-				TransformationResult finalResult = new TransformationResult();
-
-				finalResult.setConcepts(transformationResults.stream()
-						.map(TransformationResult::getConcepts).flatMap(Collection::stream).collect(Collectors.toList()));
-
-				finalResult.setFailures(transformationResults.stream().map(transformationResult -> transformationResult.getFailures().entrySet())
-						.flatMap(Collection::stream).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+	private void runBatches(TemplateTransformation transformation, SnowOwlRestClient restClient, boolean resume) throws ServiceException {
+		try {
+			TransformationJournal journal;
+			if (resume) {
+				journal = resultService.getJournal(transformation.getTransformationId());
+				journal.restoreProgress(transformation);
+				LOGGER.info("Resuming transformation {} with {} of {} batches completed", transformation.getTransformationId(),
+						transformation.getCompletedBatches(), transformation.getTotalBatches());
+			} else {
+				journal = new TransformationJournal(new ArrayList<>());
+				transformation.setTotalConcepts(transformation.getTransformRequest().getConceptsToTransform().size());
+				transformation.setResultFormat(resultService.getResultFormat());
+				resultService.writeJournal(transformation, journal);
+				resultService.setActive(transformation.getTransformationId(), true);
+			}
+			transformation.setStatus(TransformationStatus.RUNNING);
+			resultService.update(transformation);
 
-				transformation.setStatus(finalResult.getFailures().isEmpty() ? TransformationStatus.COMPLETED : TransformationStatus.COMPLETED_WITH_FAILURE);
-				resultService.writeResultsToFile(transformation, finalResult);
+			// Start transformations in multiple threads, each batch writes its own results when done
+			Map<Integer, Future<TransformationResult>> futureTasks = transform(transformation, restClient, journal,
+					(batchIndex, conceptIds, result) -> checkpointBatch(transformation, journal, batchIndex, conceptIds, result));
 
-			} catch (InterruptedException | ExecutionException e) {
-				String errorMsg = "Unexpected errors while merging transformation results.";
+			try {
+				for (Map.Entry<Integer, Future<TransformationResult>> entry : futureTasks.entrySet()) {
+					int batchIndex = entry.getKey();
+					try {
+						entry.getValue().get();
+					} catch (ExecutionException e) {
+						if (transformationExecutor.isShutdown()) {
+							throw new InterruptedException("Transformation executor shut down while running batch " + batchIndex);
+						}
+						// Record the whole batch as failed rather than losing the other batches
+						LOGGER.error("Batch {} of transformation {} failed.", batchIndex, transformation.getTransformationId(), e);
+						List<String> conceptIds = journal.getBatches().get(batchIndex);
+						TransformationResult failed = new TransformationResult();
+						Map<String, String> failures = new HashMap<>();
+						String msg = "Batch transformation failed due to " + e.getCause();
+						conceptIds.forEach(conceptId -> failures.put(conceptId, msg));
+						failed.setFailures(failures);
+						checkpointBatch(transformation, journal, batchIndex, conceptIds, failed);
+					}
+				}
+				synchronized (transformation) {
+					transformation.setStatus(transformation.getFailedConcepts() == 0 ? TransformationStatus.COMPLETED : TransformationStatus.COMPLETED_WITH_FAILURE);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				String errorMsg = "Transformation interrupted, resume to carry on from the last checkpoint. ";
 				LOGGER.error(errorMsg, e);
-				transformation.setStatus(TransformationStatus.FAILED);
-				transformation.setErrorMsg(errorMsg + getErrorMsg(e));
+				synchronized (transformation) {
+					transformation.setStatus(TransformationStatus.INTERRUPTED);
+					transformation.setErrorMsg(errorMsg + getErrorMsg(e));
+				}
 			}
 		} catch (ServiceException e) {
 			LOGGER.error("Transformation failed.", e);
-			transformation.setStatus(TransformationStatus.FAILED);
-			transformation.setErrorMsg(e.getMessage());
+			synchronized (transformation) {
+				transformation.setStatus(transformationExecutor.isShutdown() ? TransformationStatus.INTERRUPTED : TransformationStatus.FAILED);
+				transformation.setErrorMsg(e.getMessage());
+			}
 		} finally {
+			synchronized (transformation) {
+				resultService.update(transformation);
+			}
+			if (TransformationStatus.INTERRUPTED != transformation.getStatus()) {
+				resultService.setActive(transformation.getTransformationId(), false);
+			}
+		}
+	}
+
+	/**
+	 * Writes the batch results, records the batch in the journal and updates the progress counters of the transformation.
+	 * Only the failures are returned so that transformed concepts don't stay in memory until the job finishes.
+	 */
+	private TransformationResult checkpointBatch(TemplateTransformation transformation, TransformationJournal journal, int batchIndex,
+			List<String> conceptIds, TransformationResult result) throws ServiceException {
+		resultService.writeBatchResult(transformation, batchIndex, result);
+		TransformationResult summary = new TransformationResult();
+		summary.setFailures(result.getFailures());
+		int failedCount = conceptIds.size() - result.getConcepts().size();
+		synchronized (transformation) {
+			journal.recordCompleted(batchIndex, failedCount);
+			resultService.writeJournal(transformation, journal);
+			transformation.recordBatch(conceptIds.size(), failedCount);
 			resultService.update(transformation);
 		}
+		return summary;
 	}
-	
+
+	/**
+	 * Batches formed before an interruption were sized for the conditions then, so the resumed job starts from the last size chosen.
+	 */
+	private AdaptiveBatchSizer newBatchSizer(TransformationJournal journal) {
+		List<List<String>> batches = journal.getBatches();
+		int initialSize = batches.isEmpty() ? batchInitial : batches.get(batches.size() - 1).size();
+		return new AdaptiveBatchSizer(batchMin, batchMax, initialSize, batchTargetMillis, batchMaxComponents);
+	}
+
 	private String getErrorMsg(Throwable t) {
 		if (t.getMessage() != null) {
 			return t.getMessage();
-		} else {
+		} else if (t.getCause() != null) {
 			return "Unexpected error caused by " + t.getCause().getMessage();
+		} else {
+			return "Unexpected error " + t.getClass().getSimpleName();
 		}
 	}
 	
 	private TransformationInputData constructTransformationInputData(ConceptTemplate destination, TemplateTransformRequest transformRequest) throws ServiceException {
-		try {
-			TransformationInputData input = new TransformationInputData(transformRequest);
-			LogicalTemplate logical = parser.parseTemplate(destination.getLogicalTemplate());
-			input.setDestinationSlotToAttributeMap(TemplateUtil.getSlotToAttributeMap(logical, true));
-			input.setDestinationTemplate(destination);
-			return input;
-		} catch (IOException e) {
-			throw new ServiceException("Failed to parse logical template " + destination.getName(), e);
-		}
+		TransformationInputData input = new TransformationInputData(transformRequest);
+		input.setDestinationSlotToAttributeMap(templateStore.getCompiledTemplate(destination).getSlotToAttributeMap());
+		input.setDestinationTemplate(destination);
+		return input;
 	}
 
 	public List<Future<TransformationResult>> transform(TemplateTransformation transformation, SnowOwlRestClient restClient) throws ServiceException {
+		return new ArrayList<>(transform(transformation, restClient, new TransformationJournal(new ArrayList<>()),
+				(batchIndex, conceptIds, result) -> result).values());
+	}
+
+	/**
+	 * Submits the journal's batches which haven't completed, then forms and submits batches for the remaining concepts.
+	 * New batches are only formed when the transformation can submit another one, so each is sized using the batches completed by then.
+	 */
+	private Map<Integer, Future<TransformationResult>> transform(TemplateTransformation transformation, SnowOwlRestClient restClient,
+			TransformationJournal journal, BatchCompletionHandler completionHandler) throws ServiceException {
 		
 		String branchPath = transformation.getBranchPath();
 		TemplateTransformRequest transformRequest = transformation.getTransformRequest();
 		String destinationTemplate = transformRequest.getDestinationTemplate();
 		
-		List<Future<TransformationResult>> results = new ArrayList<>();
+		Map<Integer, Future<TransformationResult>> results = new LinkedHashMap<>();
 		ConceptTemplate source = null;
 		ConceptTemplate destination;
 		try {
@@ -132,43 +261,100 @@ public class TemplateConceptTransformService {
 			final TransformationInputData input = constructTransformationInputData(destination, transformRequest);
 			input.setBranchPath(branchPath);
 			input.setConceptIdMap(conceptMap);
-			List<String> batchJob = null;
-			int counter=0;
-			for (String conceptId : transformRequest.getConceptsToTransform()) {
-				if (batchJob == null) {
-					batchJob = new ArrayList<>();
+			input.setConceptCache(new TransformationConceptCache(branchPath));
+			input.setBatchSizer(newBatchSizer(journal));
+			Semaphore permits = transformationExecutor.newTransformationPermits();
+			// Batches submitted below record their completion in the journal under the transformation lock
+			Set<Integer> completedBatches;
+			synchronized (transformation) {
+				completedBatches = new HashSet<>(journal.getCompletedBatches().keySet());
+			}
+			int formedBatches = journal.getBatches().size();
+			for (int i = 0; i < formedBatches; i++) {
+				if (!completedBatches.contains(i)) {
+					results.put(i, submitBatch(input, permits, i, journal.getBatches().get(i), restClient, completionHandler));
+				}
+			}
+			Iterator<String> unbatched = journal.getUnbatchedConcepts(transformRequest.getConceptsToTransform()).iterator();
+			while (unbatched.hasNext()) {
+				// Blocks until the transformation has a free permit so the size reflects the latest completed batches
+				permits.acquire();
+				permits.release();
+				int batchSize = input.getBatchSizer().nextBatchSize();
+				List<String> batch = new ArrayList<>();
+				while (unbatched.hasNext() && batch.size() < batchSize) {
+					batch.add(unbatched.next());
 				}
-				batchJob.add(conceptId);
-				counter++;
-				if (counter % batchMax == 0 || counter == transformRequest.getConceptsToTransform().size()) {
-					// Do work
-					final List<String> task = batchJob;
-					results.add(executorService.submit(() -> batchTransform(input, task, restClient)));
-					batchJob = null;
+				int batchIndex;
+				synchronized (transformation) {
+					batchIndex = journal.addBatch(batch);
+					transformation.recordBatchSize(batch.size());
 				}
+				results.put(batchIndex, submitBatch(input, permits, batchIndex, batch, restClient, completionHandler));
 			}
 		} catch (IOException e) {
 			String templateName = source == null ? transformRequest.getSourceTemplate() : destinationTemplate;
 			throw new ServiceException("Failed to load template " + templateName, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while submitting transformation batches", e);
+		} catch (RejectedExecutionException e) {
+			throw new ServiceException("Transformation batches can't be submitted", e);
 		}
 		return results;
 		
 	}
-	
+
+	private Future<TransformationResult> submitBatch(TransformationInputData input, Semaphore permits, int batchIndex, List<String> conceptIds,
+			SnowOwlRestClient restClient, BatchCompletionHandler completionHandler) throws InterruptedException {
+		return transformationExecutor.submit(permits,
+				() -> completionHandler.batchCompleted(batchIndex, conceptIds, batchTransform(input, conceptIds, restClient)));
+	}
+
 	private TransformationResult batchTransform(TransformationInputData input, List<String> conceptIds, SnowOwlRestClient restClient) {
 		TransformationResult result = new TransformationResult();
 		Map<String, String> errors = new HashMap<>();
 		result.setFailures(errors);
+		long start = System.currentTimeMillis();
+		int componentCount = 0;
 		try {
 			final List<ConceptPojo> conceptPojos = restClient.searchConcepts(input.getBranchPath(), conceptIds);
 			if (conceptPojos != null) {
+				componentCount = countComponents(conceptPojos);
 				List<String> missing = new ArrayList<>(conceptIds);
+				try {
+					validateSlotRanges(input, conceptPojos, restClient);
+				} catch (RestClientException e) {
+					LOGGER.warn("Failed to validate slot values for the batch, validating them per concept instead.", e);
+				}
+				Map<String, Map<String, ConceptMiniPojo>> slotValuesByConcept = new LinkedHashMap<>();
 				for (ConceptPojo pojo : conceptPojos) {
 					missing.remove(pojo.getConceptId());
-					ConceptPojo transformed;
 					try {
-						transformed = performTransform(pojo, input, restClient);
-						result.addTransformedConcept(transformed);
+						slotValuesByConcept.put(pojo.getConceptId(), constructSlotToTargetValueMap(input, pojo, restClient));
+					} catch (RestClientException e) {
+						errors.put(pojo.getConceptId(), "Fail to validate slot target values");
+					}
+				}
+				if (input.getTransformRequest().isLexicalTransform()) {
+					// One request for the descriptions of all slot values in the batch which aren't cached yet
+					List<String> slotValueIds = slotValuesByConcept.values().stream()
+							.flatMap(slotValues -> slotValues.values().stream())
+							.map(ConceptMiniPojo::getConceptId)
+							.collect(Collectors.toList());
+					try {
+						input.getConceptCache().prefetchDescriptions(restClient, slotValueIds);
+					} catch (RestClientException e) {
+						LOGGER.warn("Failed to prefetch slot value descriptions, fetching them per concept instead.", e);
+					}
+				}
+				for (ConceptPojo pojo : conceptPojos) {
+					Map<String, ConceptMiniPojo> slotValues = slotValuesByConcept.get(pojo.getConceptId());
+					if (slotValues == null) {
+						continue;
+					}
+					try {
+						result.addTransformedConcept(performTransform(pojo, input, slotValues, restClient, result.getDescriptionsChanged()));
 					} catch (ServiceException e) {
 						errors.put(pojo.getConceptId(), e.getMessage());
 					}
@@ -186,18 +372,35 @@ public class TemplateConceptTransformService {
 			LOGGER.error(msg, e);
 			errors.put("Error", msg);
 		}
+		input.getBatchSizer().recordBatch(conceptIds.size(), componentCount, System.currentTimeMillis() - start);
 		return result;
 	}
+
+	private int countComponents(List<ConceptPojo> conceptPojos) {
+		int count = 0;
+		for (ConceptPojo pojo : conceptPojos) {
+			if (pojo.getDescriptions() != null) {
+				count += pojo.getDescriptions().size();
+			}
+			if (pojo.getRelationships() != null) {
+				count += pojo.getRelationships().size();
+			}
+			if (pojo.getClassAxioms() != null) {
+				for (AxiomPojo axiom : pojo.getClassAxioms()) {
+					count += axiom.getRelationships().size();
+				}
+			}
+		}
+		return count;
+	}
 	
-	private ConceptPojo performTransform(ConceptPojo conceptPojo, TransformationInputData inputData, SnowOwlRestClient restClient) throws ServiceException {
+	/**
+	 * @param descriptionsChanged the concept id is added when the lexical transformation changes any of its descriptions
+	 */
+	private ConceptPojo performTransform(ConceptPojo conceptPojo, TransformationInputData inputData, Map<String, ConceptMiniPojo> attributeSlotValueMap,
+			SnowOwlRestClient restClient, Set<String> descriptionsChanged) throws ServiceException {
 		ConceptPojo transformed = conceptPojo;
 		ConceptTemplate conceptTemplate = inputData.getDestinationTemplate();
-		Map<String, ConceptMiniPojo> attributeSlotValueMap;
-		try {
-			attributeSlotValueMap = constructSlotToTargetValueMap(inputData, conceptPojo, restClient);
-		} catch (RestClientException e) {
-			throw new ServiceException("Fail to validate slot target values" , e);
-		}
 		if (inputData.getTransformRequest().isLogicalTransform()) {
 			org.ihtsdo.otf.rest.client.terminologyserver.pojo.DefinitionStatus definitionStatus = org.ihtsdo.otf.rest.client.terminologyserver.pojo.DefinitionStatus.PRIMITIVE;
 			if (DefinitionStatus.FULLY_DEFINED == conceptTemplate.getConceptOutline().getDefinitionStatus()) {
@@ -209,15 +412,54 @@ public class TemplateConceptTransformService {
 		}
 		
 		if (inputData.getTransformRequest().isLexicalTransform()) {
-			Map<String, Set<DescriptionPojo>> slotDescriptionsMap = getSlotDescriptionValuesMap(inputData.getBranchPath(), attributeSlotValueMap, restClient);
-			DescriptionTransformer transformer = new DescriptionTransformer(transformed, conceptTemplate, slotDescriptionsMap, 
+			TransformationConceptCache conceptCache = inputData.getConceptCache();
+			prefetchSlotDescriptions(conceptCache, attributeSlotValueMap, restClient);
+			Map<String, DescriptionPojo> slotFsnValueMap = new HashMap<>();
+			Map<String, List<DescriptionPojo>> slotPtValueMap = new HashMap<>();
+			for (String slot : attributeSlotValueMap.keySet()) {
+				String conceptId = attributeSlotValueMap.get(slot).getConceptId();
+				if (conceptCache.getDescriptions(conceptId) != null) {
+					DescriptionPojo fsn = conceptCache.getFsn(conceptId);
+					if (fsn == null) {
+						throw new ServiceException(String.format("Slot %s value %s has no active FSN", slot, conceptId));
+					}
+					slotFsnValueMap.put(slot, fsn);
+					slotPtValueMap.put(slot, conceptCache.getPreferredTerms(conceptId));
+				}
+			}
+			DescriptionTransformer transformer = new DescriptionTransformer(transformed, conceptTemplate, slotFsnValueMap, slotPtValueMap,
 					inputData.getTransformRequest().getInactivationReason());
 			transformer.transform();
+			if (transformer.isDescriptionsChanged()) {
+				descriptionsChanged.add(transformed.getConceptId());
+			}
 			transformed.setEffectiveTime(null);
 		}
 		return transformed;
 	}
 
+	/**
+	 * Checks the candidate values of every slot with more than one value across the batch against the slot's range,
+	 * with one query per distinct range. The results are kept in the concept cache for the per-concept slot mapping.
+	 */
+	private void validateSlotRanges(TransformationInputData inputData, List<ConceptPojo> conceptPojos, SnowOwlRestClient restClient) throws RestClientException {
+		Map<String, Set<String>> candidatesByRange = new HashMap<>();
+		for (ConceptPojo conceptPojo : conceptPojos) {
+			Map<String, Set<ConceptMiniPojo>> slotToAttrbuteValuesMap = TemplateUtil.getSlotNameToAttributeValueMap(inputData.getDestinationSlotToAttributeMap(), conceptPojo);
+			for (String slot : slotToAttrbuteValuesMap.keySet()) {
+				Set<ConceptMiniPojo> values = slotToAttrbuteValuesMap.get(slot);
+				if (values != null && values.size() > 1) {
+					String rangeEcl = inputData.getDestinationSlotToAttributeMap().get(slot).getAllowableRangeECL().trim();
+					Set<String> candidates = candidatesByRange.computeIfAbsent(rangeEcl, k -> new HashSet<>());
+					values.forEach(value -> candidates.add(value.getConceptId()));
+				}
+			}
+		}
+		for (String rangeEcl : candidatesByRange.keySet()) {
+			inputData.getConceptCache().filterWithinRange(restClient, rangeEcl, candidatesByRange.get(rangeEcl));
+		}
+	}
+
 	private Map<String, ConceptMiniPojo> constructSlotToTargetValueMap(TransformationInputData inputData, ConceptPojo conceptPojo, SnowOwlRestClient restClient) throws RestClientException {
 		Map<String, Set<ConceptMiniPojo>> slotToAttrbuteValuesMap = TemplateUtil.getSlotNameToAttributeValueMap(inputData.getDestinationSlotToAttributeMap(), conceptPojo);
 		// validate using attribute slot range when there is more than one value for a given slot
@@ -225,8 +467,8 @@ public class TemplateConceptTransformService {
 		for (String slot : slotToAttrbuteValuesMap.keySet()) {
 			List<String> conceptIds = slotToAttrbuteValuesMap.get(slot).stream().map(ConceptMiniPojo :: getConceptId).collect(Collectors.toList());
 			if (conceptIds.size() > 1) {
-				String rangeEcl = TemplateUtil.constructRangeValidationEcl(inputData.getDestinationSlotToAttributeMap().get(slot).getAllowableRangeECL().trim(), conceptIds);
-				Set<String> conceptsWithinRange = restClient.eclQuery(inputData.getBranchPath(), rangeEcl, conceptIds.size());
+				String rangeEcl = inputData.getDestinationSlotToAttributeMap().get(slot).getAllowableRangeECL().trim();
+				Set<String> conceptsWithinRange = inputData.getConceptCache().filterWithinRange(restClient, rangeEcl, conceptIds);
 				for (ConceptMiniPojo pojo : slotToAttrbuteValuesMap.get(slot)) {
 					if (conceptsWithinRange.contains(pojo.getConceptId())) {
 						slotToValuesMap.put(slot, pojo);
@@ -266,56 +508,36 @@ public class TemplateConceptTransformService {
 	
 	public void validate(ConceptTemplate source, ConceptTemplate destination) throws ServiceException {
 		TemplateUtil.validateTermSlots(destination, false);
-		try {
-			LogicalTemplate sourcelogical = parser.parseTemplate(source.getLogicalTemplate());
-			LogicalTemplate destinationLogical = parser.parseTemplate(destination.getLogicalTemplate());
-			
-			Set<String> sourceAttributeTypes = TemplateUtil.getAttributeTypes(sourcelogical);
-			Map<String, Attribute> destinationSlotToAttributeMap = TemplateUtil.getSlotToAttributeMap(destinationLogical, false);
-			
-			Set<String> destinationTypes = destinationSlotToAttributeMap.values().stream().map(Attribute:: getType).collect(Collectors.toSet());
-			// check mandatory destination attribute types exist in the source template
-			if (!sourceAttributeTypes.containsAll(destinationTypes)) {
-				StringBuilder msgBuilder = new StringBuilder();
-				int counter = 0;
-				for (String type : destinationTypes) {
-					if (!sourceAttributeTypes.contains(type)) {
-						if (counter++ > 0) {
-							msgBuilder.append(",");
-						}
-						msgBuilder.append(type);
+		Set<String> sourceAttributeTypes = templateStore.getCompiledTemplate(source).getAttributeTypes();
+		Map<String, Attribute> destinationSlotToAttributeMap = templateStore.getCompiledTemplate(destination).getMandatorySlotToAttributeMap();
+		
+		Set<String> destinationTypes = destinationSlotToAttributeMap.values().stream().map(Attribute:: getType).collect(Collectors.toSet());
+		// check mandatory destination attribute types exist in the source template
+		if (!sourceAttributeTypes.containsAll(destinationTypes)) {
+			StringBuilder msgBuilder = new StringBuilder();
+			int counter = 0;
+			for (String type : destinationTypes) {
+				if (!sourceAttributeTypes.contains(type)) {
+					if (counter++ > 0) {
+						msgBuilder.append(",");
 					}
+					msgBuilder.append(type);
 				}
-				throw new ServiceException(String.format("Destination template %s has slot attribute type %s that doesn't exist in the source template %s",
-						destination.getName(), msgBuilder.toString(), source.getName()));
 			}
-		} catch (IOException e) {
-			throw new ServiceException("Failed to parse logical template", e);
+			throw new ServiceException(String.format("Destination template %s has slot attribute type %s that doesn't exist in the source template %s",
+					destination.getName(), msgBuilder.toString(), source.getName()));
 		}
 	}
 
-	private Map<String, Set<DescriptionPojo>> getSlotDescriptionValuesMap(String branchPath, 
-			Map<String, ConceptMiniPojo> attributeSlotMap, SnowOwlRestClient restClient) throws ServiceException {
-
-		Map<String, Set<DescriptionPojo>> slotDescriptionMap = new HashMap<>();
+	private void prefetchSlotDescriptions(TransformationConceptCache conceptCache, Map<String, ConceptMiniPojo> attributeSlotMap,
+			SnowOwlRestClient restClient) throws ServiceException {
 		List<String> conceptIds = attributeSlotMap.values().stream().map(ConceptMiniPojo::getConceptId).collect(Collectors.toList());
-		List<ConceptPojo> results;
 		try {
-			results = restClient.searchConcepts(branchPath, conceptIds);
+			// Nothing is requested when the batch has already prefetched these concepts
+			conceptCache.prefetchDescriptions(restClient, conceptIds);
 		} catch (RestClientException e) {
-			throw new ServiceException("Failed to search concepts on branch " + branchPath, e);
-		}
-		Map<String, ConceptPojo> conceptPojoMap = new HashMap<>();
-		for (ConceptPojo pojo : results) {
-			conceptPojoMap.put(pojo.getConceptId(), pojo);
-		}
-		for (String slot : attributeSlotMap.keySet()) {
-			ConceptPojo pojo = conceptPojoMap.get(attributeSlotMap.get(slot).getConceptId());
-			if (pojo != null) {
-				slotDescriptionMap.put(slot, conceptPojoMap.get(attributeSlotMap.get(slot).getConceptId()).getDescriptions());
-			}
+			throw new ServiceException("Failed to search concepts on branch " + conceptCache.getBranchPath(), e);
 		}
-		return slotDescriptionMap;
 	}
 
 	public TemplateTransformation createTemplateTransformation(String branchPath, TemplateTransformRequest transformRequest) throws ServiceException {
@@ -326,26 +548,33 @@ public class TemplateConceptTransformService {
 	}
 
 	public ConceptPojo transformConcept(String branchPath, TemplateTransformRequest request, ConceptPojo conceptToTransform, SnowOwlRestClient restClient) throws ServiceException {
-		ConceptTemplate destination = null;
-		LogicalTemplate logical;
+		ConceptTemplate destination;
 		String destinationTemplate = request.getDestinationTemplate();
 		try {
 			destination = templateService.loadOrThrow(destinationTemplate);
-			logical = parser.parseTemplate(destination.getLogicalTemplate());
 		} catch (ResourceNotFoundException | IOException e) {
-			
-			if (destination == null) {
-				throw new IllegalArgumentException("No template found with name " + destinationTemplate, e);
-			}
-			throw new ServiceException("Failed to load and parse template " + destinationTemplate, e);
+			throw new IllegalArgumentException("No template found with name " + destinationTemplate, e);
 		}
+		CompiledTemplate compiled = templateStore.getCompiledTemplate(destination);
 
 		TransformationInputData inputData = new TransformationInputData(request);
 		inputData.setBranchPath(branchPath);
 		inputData.setDestinationTemplate(destination);
 		inputData.setConceptIdMap(getDestinationConceptsMap(branchPath, restClient, destination));
-		inputData.setDestinationSlotToAttributeMap(TemplateUtil.getSlotToAttributeMap(logical, true));
+		inputData.setDestinationSlotToAttributeMap(compiled.getSlotToAttributeMap());
+		inputData.setConceptCache(new TransformationConceptCache(branchPath));
 		
-		return performTransform(conceptToTransform, inputData, restClient);
+		Map<String, ConceptMiniPojo> attributeSlotValueMap;
+		try {
+			attributeSlotValueMap = constructSlotToTargetValueMap(inputData, conceptToTransform, restClient);
+		} catch (RestClientException e) {
+			throw new ServiceException("Fail to validate slot target values" , e);
+		}
+		return performTransform(conceptToTransform, inputData, attributeSlotValueMap, restClient, new HashSet<>());
+	}
+
+	@FunctionalInterface
+	private interface BatchCompletionHandler {
+		TransformationResult batchCompleted(int batchIndex, List<String> conceptIds, TransformationResult result) throws ServiceException;
 	}
 }
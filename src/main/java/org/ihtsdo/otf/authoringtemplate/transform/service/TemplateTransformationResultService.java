@@ -1,27 +1,57 @@
 package org.ihtsdo.otf.authoringtemplate.transform.service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import org.ihtsdo.otf.authoringtemplate.TransformationResourceConfiguration;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.authoringtemplate.transform.ResourcePathHelper;
 import org.ihtsdo.otf.authoringtemplate.transform.TemplateTransformation;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationJournal;
 import org.ihtsdo.otf.authoringtemplate.transform.TransformationResult;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationResultFormat;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationResultIndex;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationResultPage;
 import org.ihtsdo.otf.authoringtemplate.transform.TransformationStatus;
 import org.ihtsdo.otf.resourcemanager.ResourceManager;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
 import org.ihtsdo.otf.rest.exception.ResourceNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.ihtsdo.otf.authoringtemplate.transform.TransformationStatus.COMPLETED;
 import static org.ihtsdo.otf.authoringtemplate.transform.TransformationStatus.COMPLETED_WITH_FAILURE;
+import static org.ihtsdo.otf.authoringtemplate.transform.TransformationResultFormat.NDJSON;
+import static org.ihtsdo.otf.authoringtemplate.transform.TransformationResultFormat.NDJSON_GZIP;
 
 @Service
 public class TemplateTransformationResultService {
@@ -30,6 +60,26 @@ public class TemplateTransformationResultService {
 
 	private Gson prettyJson;
 
+	private Gson compactJson;
+
+	@Value("${transformation.result.compress}")
+	private boolean compressResults;
+
+	@Value("${transformation.result.page.max}")
+	private int pageMax;
+
+	@Value("${transformation.result.failures.cache.maxSize}")
+	private long failuresCacheMaxSize;
+
+	@Value("${transformation.result.failures.cache.expireAfterAccessMinutes}")
+	private long failuresCacheExpireMinutes;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	// Failures of completed line delimited transformations ordered by key, so paging doesn't read every batch each time
+	private Cache<String, NavigableMap<String, String>> sortedFailuresCache;
+
 	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	public TemplateTransformationResultService(
@@ -37,37 +87,343 @@ public class TemplateTransformationResultService {
 			@Autowired ResourceLoader cloudResourceLoader) {
 		
 		prettyJson = new GsonBuilder().setPrettyPrinting().create();
+		compactJson = new Gson();
 		this.transformationResourceManager = new ResourceManager(transformationResourceConfiguration, cloudResourceLoader);
 	}
 
+	@PostConstruct
+	public void init() {
+		sortedFailuresCache = CacheBuilder.newBuilder()
+				.maximumSize(failuresCacheMaxSize)
+				.expireAfterAccess(failuresCacheExpireMinutes, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+		GuavaCacheMetrics.monitor(meterRegistry, sortedFailuresCache, "transformationResultFailures");
+	}
+
+	/**
+	 * @return the format new transformations store their batch results in.
+	 */
+	public TransformationResultFormat getResultFormat() {
+		return compressResults ? NDJSON_GZIP : NDJSON;
+	}
+
 	public TransformationResult getResult(String transformationId) throws ServiceException {
+		TemplateTransformation transformation = getCompletedTransformation(transformationId);
+		if (isStoredInBatches(transformation)) {
+			return combineBatchResults(transformation);
+		}
+		return readResult(transformationId, ResourcePathHelper.getResultPath(transformationId));
+	}
+
+	/**
+	 * Writes the results as one TransformationResult JSON document. Line delimited batch results are copied to the output
+	 * record by record, so the transformed concepts are never all held in memory.
+	 */
+	public void writeResult(String transformationId, OutputStream outputStream) throws ServiceException, IOException {
+		TemplateTransformation transformation = getCompletedTransformation(transformationId);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+		if (!isLineDelimited(transformation)) {
+			TransformationResult result = isStoredInBatches(transformation) ? combineBatchResults(transformation)
+					: readResult(transformationId, ResourcePathHelper.getResultPath(transformationId));
+			compactJson.toJson(result, writer);
+			writer.flush();
+			return;
+		}
+		writer.write("{\"concepts\":[");
+		boolean first = true;
+		for (int i = 0; i < transformation.getTotalBatches(); i++) {
+			try (BufferedReader reader = openBatchConcepts(transformation, i)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty()) {
+						if (!first) {
+							writer.write(',');
+						}
+						writer.write(line);
+						first = false;
+					}
+				}
+			}
+		}
+		writer.write("],\"failures\":");
+		// Batches which failed to load their concepts all report under the same key, the last is kept as when combined
+		Map<String, String> failures = new LinkedHashMap<>();
+		for (int i = 0; i < transformation.getTotalBatches(); i++) {
+			failures.putAll(readBatchFailures(transformationId, i));
+		}
+		compactJson.toJson(failures, writer);
+		writer.write("}");
+		writer.flush();
+	}
+
+	/**
+	 * Returns one page of the transformed concepts, or of the failures when failuresOnly is set, matching the filters.
+	 * For line delimited results the batch indexes are used to find the records on the page,
+	 * so only the records on the page are read and batches without any are skipped.
+	 * Failures are only read when they are part of the page, and are kept ordered per transformation once read.
+	 * @param conceptIds only include these concepts, or all concepts when null or empty. Failures of these concepts are included with the page.
+	 * @param changedDescriptionsOnly only include concepts which had descriptions added, inactivated or changed by the transformation
+	 */
+	public TransformationResultPage getResultPage(String transformationId, int offset, int limit, boolean failuresOnly,
+			Set<String> conceptIds, boolean changedDescriptionsOnly) throws ServiceException {
+		if (offset < 0 || limit < 1 || limit > pageMax) {
+			throw new IllegalArgumentException(String.format("Offset must not be negative and limit must be between 1 and %d", pageMax));
+		}
+		TemplateTransformation transformation = getCompletedTransformation(transformationId);
+		boolean indexed = isLineDelimited(transformation);
+		if (changedDescriptionsOnly && !indexed) {
+			throw new IllegalArgumentException("Results of transformation " + transformationId + " were stored without an index of changed descriptions");
+		}
+		boolean allConcepts = conceptIds == null || conceptIds.isEmpty();
+		TransformationResultPage page = new TransformationResultPage(offset, limit);
+		TransformationResult result = indexed ? null : getResult(transformationId);
+
+		if (failuresOnly || !allConcepts) {
+			NavigableMap<String, String> failures = indexed ? getSortedFailures(transformation)
+					: new TreeMap<>(result.getFailures() != null ? result.getFailures() : Collections.emptyMap());
+			if (!allConcepts) {
+				NavigableMap<String, String> requested = new TreeMap<>();
+				for (String conceptId : conceptIds) {
+					String failure = failures.get(conceptId);
+					if (failure != null) {
+						requested.put(conceptId, failure);
+					}
+				}
+				failures = requested;
+			}
+			if (failuresOnly) {
+				page.setTotal(failures.size());
+				failures.entrySet().stream().skip(offset).limit(limit).forEach(failure -> page.getFailures().put(failure.getKey(), failure.getValue()));
+				return page;
+			}
+			page.getFailures().putAll(failures);
+		}
+
+		int matched = 0;
+		if (!indexed) {
+			for (ConceptPojo concept : result.getConcepts()) {
+				if (allConcepts || conceptIds.contains(concept.getConceptId())) {
+					if (matched >= offset && matched < offset + limit) {
+						page.getConcepts().add(concept);
+					}
+					matched++;
+				}
+			}
+		} else {
+			for (int i = 0; i < transformation.getTotalBatches(); i++) {
+				TransformationResultIndex index = readBatchIndex(transformationId, i);
+				List<Integer> lines = new ArrayList<>();
+				for (int line = 0; line < index.getConceptIds().size(); line++) {
+					String conceptId = index.getConceptIds().get(line);
+					if ((allConcepts || conceptIds.contains(conceptId))
+							&& (!changedDescriptionsOnly || index.getDescriptionsChanged().contains(conceptId))) {
+						if (matched >= offset && matched < offset + limit) {
+							lines.add(line);
+						}
+						matched++;
+					}
+				}
+				if (!lines.isEmpty()) {
+					page.getConcepts().addAll(readBatchConcepts(transformation, i, lines));
+				}
+			}
+		}
+		page.setTotal(matched);
+		return page;
+	}
+
+	/**
+	 * Results of a completed transformation never change, so its failures are read from the batches once and then cached.
+	 */
+	private NavigableMap<String, String> getSortedFailures(TemplateTransformation transformation) throws ServiceException {
+		String transformationId = transformation.getTransformationId();
+		try {
+			return sortedFailuresCache.get(transformationId, () -> {
+				NavigableMap<String, String> failures = new TreeMap<>();
+				for (int i = 0; i < transformation.getTotalBatches(); i++) {
+					failures.putAll(readBatchFailures(transformationId, i));
+				}
+				return Collections.unmodifiableNavigableMap(failures);
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ServiceException) {
+				throw (ServiceException) e.getCause();
+			}
+			throw new ServiceException("Failed to read failures for transformation id " + transformationId, e.getCause());
+		}
+	}
+
+	CacheStats getSortedFailuresCacheStats() {
+		return sortedFailuresCache.stats();
+	}
+
+	/**
+	 * @param lines ascending line numbers of the records to read
+	 */
+	private List<ConceptPojo> readBatchConcepts(TemplateTransformation transformation, int batchIndex, List<Integer> lines) throws ServiceException {
+		List<ConceptPojo> concepts = new ArrayList<>();
+		try (BufferedReader reader = openBatchConcepts(transformation, batchIndex)) {
+			Iterator<Integer> wanted = lines.iterator();
+			int next = wanted.next();
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (lineNumber++ == next) {
+					concepts.add(compactJson.fromJson(line, ConceptPojo.class));
+					if (!wanted.hasNext()) {
+						break;
+					}
+					next = wanted.next();
+				}
+			}
+		} catch (Exception e) {
+			throw new ServiceException("Failed to read results of batch " + batchIndex + " for transformation id " + transformation.getTransformationId(), e);
+		}
+		return concepts;
+	}
+
+	private TransformationResultIndex readBatchIndex(String transformationId, int batchIndex) throws ServiceException {
+		try (InputStream input = transformationResourceManager.readResourceStream(ResourcePathHelper.getBatchIndexPath(transformationId, batchIndex));
+				Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+			return compactJson.fromJson(reader, TransformationResultIndex.class);
+		} catch (Exception e) {
+			throw new ServiceException("Failed to read result index of batch " + batchIndex + " for transformation id " + transformationId, e);
+		}
+	}
+
+	private TemplateTransformation getCompletedTransformation(String transformationId) {
 		TemplateTransformation transformation = getTemplateTransformation(transformationId);
 		TransformationStatus status = transformation.getStatus();
 		if (COMPLETED != status && COMPLETED_WITH_FAILURE != status) {
 			throw new IllegalStateException("No results are available for transformation id " + transformationId + " due to the status is " + status);
 		}
-		
-		TransformationResult result;
-		try (InputStream input = transformationResourceManager.readResourceStream(ResourcePathHelper.getResultPath(transformationId));
+		return transformation;
+	}
+
+	/**
+	 * Merges the results written for each batch. Batches are read one at a time from the resource store.
+	 */
+	private TransformationResult combineBatchResults(TemplateTransformation transformation) throws ServiceException {
+		TransformationResult combined = new TransformationResult();
+		Map<String, String> failures = new HashMap<>();
+		for (int i = 0; i < transformation.getTotalBatches(); i++) {
+			TransformationResult batchResult = readBatchResult(transformation, i);
+			combined.getConcepts().addAll(batchResult.getConcepts());
+			if (batchResult.getFailures() != null) {
+				failures.putAll(batchResult.getFailures());
+			}
+		}
+		combined.setFailures(failures);
+		return combined;
+	}
+
+	private TransformationResult readResult(String transformationId, String resourcePath) throws ServiceException {
+		try (InputStream input = transformationResourceManager.readResourceStream(resourcePath);
 				Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
 
-			result = prettyJson.fromJson(reader, TransformationResult.class);
+			return prettyJson.fromJson(reader, TransformationResult.class);
 		} catch (Exception e) {
 			String msg = "Failed to get resutls for transformation " + transformationId;
 			logger.error(msg, e);
 			throw new ServiceException(msg, e);
 		}
+	}
+
+	private TransformationResult readBatchResult(TemplateTransformation transformation, int batchIndex) throws ServiceException {
+		String transformationId = transformation.getTransformationId();
+		if (!isLineDelimited(transformation)) {
+			return readResult(transformationId, ResourcePathHelper.getBatchResultPath(transformationId, batchIndex));
+		}
+		TransformationResult result = new TransformationResult();
+		try (BufferedReader reader = openBatchConcepts(transformation, batchIndex)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					result.addTransformedConcept(compactJson.fromJson(line, ConceptPojo.class));
+				}
+			}
+		} catch (Exception e) {
+			throw new ServiceException("Failed to read results of batch " + batchIndex + " for transformation id " + transformationId, e);
+		}
+		result.setFailures(readBatchFailures(transformationId, batchIndex));
 		return result;
 	}
-	
-	public void writeResultsToFile(TemplateTransformation transformation, TransformationResult result) throws ServiceException {
-		if (result != null) {
-			String resourcePath = ResourcePathHelper.getResultPath(transformation.getTransformationId());
-			try ( OutputStream output = transformationResourceManager.writeResourceStream(resourcePath);Writer writer = new OutputStreamWriter(output)) {
+
+	private BufferedReader openBatchConcepts(TemplateTransformation transformation, int batchIndex) throws IOException {
+		boolean compressed = NDJSON_GZIP == transformation.getResultFormat();
+		String resourcePath = ResourcePathHelper.getBatchConceptsPath(transformation.getTransformationId(), batchIndex, compressed);
+		InputStream input = transformationResourceManager.readResourceStream(resourcePath);
+		if (input == null) {
+			throw new FileNotFoundException(resourcePath);
+		}
+		return new BufferedReader(new InputStreamReader(compressed ? new GZIPInputStream(input) : input, StandardCharsets.UTF_8));
+	}
+
+	private Map<String, String> readBatchFailures(String transformationId, int batchIndex) throws ServiceException {
+		try (InputStream input = transformationResourceManager.readResourceStream(ResourcePathHelper.getBatchFailuresPath(transformationId, batchIndex));
+				Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+			Map<String, String> failures = compactJson.fromJson(reader, new TypeToken<Map<String, String>>(){}.getType());
+			return failures != null ? failures : Collections.emptyMap();
+		} catch (Exception e) {
+			throw new ServiceException("Failed to read failures of batch " + batchIndex + " for transformation id " + transformationId, e);
+		}
+	}
+
+	/**
+	 * @return false for transformations run before results were written per batch, which have a single result document.
+	 * A transformation with nothing to transform has no batches but still records the format of its batch results.
+	 */
+	private boolean isStoredInBatches(TemplateTransformation transformation) {
+		return transformation.getTotalBatches() > 0 || transformation.getResultFormat() != null;
+	}
+
+	private boolean isLineDelimited(TemplateTransformation transformation) {
+		return NDJSON == transformation.getResultFormat() || NDJSON_GZIP == transformation.getResultFormat();
+	}
+
+	/**
+	 * Writes the result of one batch so that it survives even if later batches fail.
+	 * In the line delimited formats the transformed concepts are written one per line and the failures to a separate document.
+	 */
+	public void writeBatchResult(TemplateTransformation transformation, int batchIndex, TransformationResult result) throws ServiceException {
+		String transformationId = transformation.getTransformationId();
+		if (!isLineDelimited(transformation)) {
+			String resourcePath = ResourcePathHelper.getBatchResultPath(transformationId, batchIndex);
+			try (OutputStream output = transformationResourceManager.writeResourceStream(resourcePath); Writer writer = new OutputStreamWriter(output)) {
 				prettyJson.toJson(result, writer);
 			} catch (Exception e) {
-				throw new ServiceException("Failed to write results to disk for transformation id " + transformation.getTransformationId(), e);
+				throw new ServiceException("Failed to write results of batch " + batchIndex + " for transformation id " + transformationId, e);
+			}
+			return;
+		}
+		boolean compressed = NDJSON_GZIP == transformation.getResultFormat();
+		String conceptsPath = ResourcePathHelper.getBatchConceptsPath(transformationId, batchIndex, compressed);
+		try (OutputStream output = transformationResourceManager.writeResourceStream(conceptsPath);
+				Writer writer = new BufferedWriter(new OutputStreamWriter(compressed ? new GZIPOutputStream(output) : output, StandardCharsets.UTF_8))) {
+			for (ConceptPojo concept : result.getConcepts()) {
+				compactJson.toJson(concept, writer);
+				writer.write('\n');
 			}
+		} catch (Exception e) {
+			throw new ServiceException("Failed to write results of batch " + batchIndex + " for transformation id " + transformationId, e);
+		}
+		String failuresPath = ResourcePathHelper.getBatchFailuresPath(transformationId, batchIndex);
+		try (OutputStream output = transformationResourceManager.writeResourceStream(failuresPath);
+				Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+			compactJson.toJson(result.getFailures() != null ? result.getFailures() : Collections.emptyMap(), writer);
+		} catch (Exception e) {
+			throw new ServiceException("Failed to write failures of batch " + batchIndex + " for transformation id " + transformationId, e);
+		}
+		TransformationResultIndex index = new TransformationResultIndex();
+		result.getConcepts().forEach(concept -> index.getConceptIds().add(concept.getConceptId()));
+		index.getDescriptionsChanged().addAll(result.getDescriptionsChanged());
+		String indexPath = ResourcePathHelper.getBatchIndexPath(transformationId, batchIndex);
+		try (OutputStream output = transformationResourceManager.writeResourceStream(indexPath);
+				Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+			compactJson.toJson(index, writer);
+		} catch (Exception e) {
+			throw new ServiceException("Failed to write result index of batch " + batchIndex + " for transformation id " + transformationId, e);
 		}
 	}
 
@@ -95,4 +451,53 @@ public class TemplateTransformationResultService {
 			throw new ResourceNotFoundException("Can't find any template transformation with id " + transformationId, e);
 		}
 	}
+
+	public void writeJournal(TemplateTransformation transformation, TransformationJournal journal) throws ServiceException {
+		String resourcePath = ResourcePathHelper.getJournalPath(transformation.getTransformationId());
+		try (OutputStream output = transformationResourceManager.writeResourceStream(resourcePath); Writer writer = new OutputStreamWriter(output)) {
+			prettyJson.toJson(journal, writer);
+		} catch (Exception e) {
+			throw new ServiceException("Failed to write journal for transformation id " + transformation.getTransformationId(), e);
+		}
+	}
+
+	public TransformationJournal getJournal(String transformationId) throws ServiceException {
+		try (InputStream input = transformationResourceManager.readResourceStream(ResourcePathHelper.getJournalPath(transformationId));
+				Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+			return prettyJson.fromJson(reader, TransformationJournal.class);
+		} catch (Exception e) {
+			throw new ServiceException("Failed to read journal for transformation id " + transformationId, e);
+		}
+	}
+
+	/**
+	 * @return ids of transformations which have been started but haven't finished, including those interrupted by a restart.
+	 */
+	public synchronized Set<String> getActiveTransformationIds() {
+		try (InputStream input = transformationResourceManager.readResourceStream(ResourcePathHelper.getActiveTransformationsPath())) {
+			if (input == null) {
+				return new HashSet<>();
+			}
+			try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+				Set<String> ids = prettyJson.fromJson(reader, new TypeToken<Set<String>>(){}.getType());
+				return ids != null ? ids : new HashSet<>();
+			}
+		} catch (IOException e) {
+			logger.debug("No active transformations recorded.", e);
+			return new HashSet<>();
+		}
+	}
+
+	public synchronized void setActive(String transformationId, boolean active) throws ServiceException {
+		Set<String> ids = getActiveTransformationIds();
+		boolean changed = active ? ids.add(transformationId) : ids.remove(transformationId);
+		if (changed) {
+			try (OutputStream output = transformationResourceManager.writeResourceStream(ResourcePathHelper.getActiveTransformationsPath());
+					Writer writer = new OutputStreamWriter(output)) {
+				prettyJson.toJson(ids, writer);
+			} catch (IOException e) {
+				throw new ServiceException("Failed to record active transformations", e);
+			}
+		}
+	}
 }
@@ -0,0 +1,117 @@
+package org.ihtsdo.otf.authoringtemplate.transform.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Shared thread pool running transformation batches.
+ * The queue is bounded and, when full, the submitting transformation runs the batch itself which slows it down.
+ * Each transformation can only have a limited number of batches queued or running at once so that
+ * one large job can't hold up the others.
+ * Queue depth, active batches and batch duration are published as transformation.executor.* and transformation.batch metrics.
+ */
+@Component
+public class TransformationExecutor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransformationExecutor.class);
+
+	@Value("${transformation.executor.threads}")
+	private int threads;
+
+	@Value("${transformation.executor.queueCapacity}")
+	private int queueCapacity;
+
+	@Value("${transformation.executor.maxBatchesPerTransformation}")
+	private int maxBatchesPerTransformation;
+
+	@Value("${transformation.executor.shutdownTimeoutSeconds}")
+	private long shutdownTimeoutSeconds;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private ThreadPoolExecutor executor;
+
+	private Timer batchTimer;
+
+	@PostConstruct
+	public void init() {
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity),
+				new CustomizableThreadFactory("transformation-"),
+				(task, pool) -> {
+					if (pool.isShutdown()) {
+						throw new RejectedExecutionException("Transformation executor has been shut down");
+					}
+					task.run();
+				});
+		Gauge.builder("transformation.executor.queued", executor, pool -> pool.getQueue().size())
+				.description("Transformation batches waiting for a thread")
+				.register(meterRegistry);
+		Gauge.builder("transformation.executor.active", executor, ThreadPoolExecutor::getActiveCount)
+				.description("Transformation batches currently running")
+				.register(meterRegistry);
+		batchTimer = Timer.builder("transformation.batch")
+				.description("Time taken to transform one batch of concepts")
+				.register(meterRegistry);
+	}
+
+	/**
+	 * @return permits limiting how many batches of a single transformation can be queued or running at once.
+	 */
+	public Semaphore newTransformationPermits() {
+		return new Semaphore(maxBatchesPerTransformation);
+	}
+
+	/**
+	 * Submits a batch once the transformation has a free permit, blocking the caller until then.
+	 * The permit is released when the batch finishes.
+	 */
+	public <T> Future<T> submit(Semaphore transformationPermits, Callable<T> batch) throws InterruptedException {
+		transformationPermits.acquire();
+		try {
+			return executor.submit(() -> {
+				try {
+					return batchTimer.recordCallable(batch);
+				} finally {
+					transformationPermits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			transformationPermits.release();
+			throw e;
+		}
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		if (!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+			LOGGER.warn("Transformation batches still running after {} seconds, interrupting them.", shutdownTimeoutSeconds);
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.ihtsdo.otf.authoringtemplate.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.ihtsdo.otf.authoringtemplate.service.Constants;
+import org.ihtsdo.otf.authoringtemplate.service.ExactMatchEvaluator;
+import org.ihtsdo.otf.authoringtemplate.transform.TestDataHelper;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.AxiomPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.RelationshipPojo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.snomed.authoringtemplate.domain.logical.Attribute;
+import org.snomed.authoringtemplate.domain.logical.AttributeGroup;
+import org.snomed.authoringtemplate.domain.logical.LogicalTemplate;
+import org.snomed.authoringtemplate.service.LogicalTemplateParserService;
+
+/**
+ * Compares the bitmask based {@link ExactMatchEvaluator} with the previous set based exact match check,
+ * which is kept below as the baseline.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.ihtsdo.otf.authoringtemplate.benchmark.ExactMatchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExactMatchBenchmark {
+
+	private static final String LOGICAL_TEMPLATE = "71388002 |Procedure|:   [[~1..1]] {      260686004 |Method| = 312251004 |Computed tomography imaging action|,      "
+			+ "[[~1..1]] 405813007 |Procedure site - Direct| = [[+id(<< 442083009 |Anatomical or acquired body structure|) @procSite]],      "
+			+ "363703001 |Has intent| = 429892002 |Guidance intent|   },   "
+			+ "{      260686004 |Method| = [[+id (<< 129264002 |Action|) @action]],      "
+			+ "[[~1..1]] 405813007 |Procedure site - Direct| = [[+id $procSite]]   }";
+
+	@Param({"1000", "100000"})
+	private int conceptCount;
+
+	private List<AttributeGroup> attributeGroups;
+
+	private List<Attribute> unGroupedAttributes;
+
+	private ExactMatchEvaluator evaluator;
+
+	private List<ConceptPojo> concepts;
+
+	@Setup
+	public void setUp() throws IOException {
+		LogicalTemplate logical = new LogicalTemplateParserService().parseTemplate(LOGICAL_TEMPLATE);
+		attributeGroups = logical.getAttributeGroups();
+		unGroupedAttributes = logical.getUngroupedAttributes();
+		evaluator = new ExactMatchEvaluator(attributeGroups, unGroupedAttributes);
+		concepts = new ArrayList<>();
+		for (int i = 0; i < conceptCount; i++) {
+			ConceptPojo concept = TestDataHelper.createCTGuidedProcedureConcept(i % 2 == 0);
+			concept.setConceptId(String.valueOf(1000000 + i));
+			if (i % 5 == 0) {
+				// Every fifth concept has an attribute the template doesn't allow
+				AxiomPojo axiom = new AxiomPojo();
+				axiom.setActive(true);
+				axiom.setAxiomId(UUID.randomUUID().toString());
+				Set<RelationshipPojo> relationships = new HashSet<>(concept.getClassAxioms().iterator().next().getRelationships());
+				relationships.add(new RelationshipPojo(1, "424226004", "123456", TestDataHelper.STATED_RELATIONSHIP));
+				axiom.setRelationships(relationships);
+				Set<AxiomPojo> axioms = new HashSet<>();
+				axioms.add(axiom);
+				concept.setClassAxioms(axioms);
+			}
+			concepts.add(concept);
+		}
+	}
+
+	@Benchmark
+	public int setBasedMatch() {
+		return findConceptsNotMatchExactly(concepts, attributeGroups, unGroupedAttributes, true).size();
+	}
+
+	@Benchmark
+	public int bitmaskMatch() {
+		int notMatched = 0;
+		for (ConceptPojo concept : concepts) {
+			if (evaluator.evaluate(concept, true) != 0) {
+				notMatched++;
+			}
+		}
+		return notMatched;
+	}
+
+	private Set<String> findConceptsNotMatchExactly(List<ConceptPojo> conceptPojos, List<AttributeGroup> attributeGroups,
+			List<Attribute> unGroupedAttributes, boolean stated) {
+		List<Set<String>> allTypes = new ArrayList<>();
+		List<Set<String>> mandatoryTypes = new ArrayList<>();
+		for (AttributeGroup group : attributeGroups) {
+			Set<String> groupTypes = new HashSet<>();
+			Set<String> mandatoryGroupTypes = new HashSet<>();
+			for (Attribute attribute : group.getAttributes()) {
+				groupTypes.add(attribute.getType());
+				if ("1".equals(attribute.getCardinalityMin())) {
+					mandatoryGroupTypes.add(attribute.getType());
+				}
+			}
+			allTypes.add(groupTypes);
+			if ("1".equals(group.getCardinalityMin())) {
+				mandatoryTypes.add(mandatoryGroupTypes);
+			}
+		}
+		Set<String> ungrouped = new HashSet<>();
+		Set<String> mandatoryUngrouped = new HashSet<>();
+		ungrouped.add(Constants.IS_A);
+		mandatoryUngrouped.add(Constants.IS_A);
+		for (Attribute attr : unGroupedAttributes) {
+			ungrouped.add(attr.getType());
+			if ("1".equals(attr.getCardinalityMin())) {
+				mandatoryUngrouped.add(attr.getType());
+			}
+		}
+		allTypes.add(ungrouped);
+		mandatoryTypes.add(mandatoryUngrouped);
+
+		Set<String> results = new HashSet<>();
+		for (ConceptPojo concept : conceptPojos) {
+			List<RelationshipPojo> activeRelationships = new ArrayList<>();
+			if (stated) {
+				for (AxiomPojo axiom : concept.getClassAxioms()) {
+					if (axiom.isActive()) {
+						activeRelationships.addAll(axiom.getRelationships());
+					}
+				}
+			}
+			Map<Integer, Set<String>> relGroupMap = new HashMap<>();
+			for (RelationshipPojo pojo : activeRelationships) {
+				relGroupMap.computeIfAbsent(pojo.getGroupId(), k -> new HashSet<>()).add(pojo.getType().getConceptId());
+			}
+			if (missingMandatoryAttribute(mandatoryTypes, relGroupMap.values()) || containExtraAttribute(allTypes, relGroupMap.values())) {
+				results.add(concept.getConceptId());
+			}
+		}
+		return results;
+	}
+
+	private boolean missingMandatoryAttribute(List<Set<String>> mandatoryTypes, Collection<Set<String>> relGroups) {
+		for (Set<String> mandatory : mandatoryTypes) {
+			boolean isFound = false;
+			for (Set<String> typeSet : relGroups) {
+				if (typeSet.containsAll(mandatory)) {
+					isFound = true;
+					break;
+				}
+			}
+			if (!isFound) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean containExtraAttribute(List<Set<String>> allTypes, Collection<Set<String>> relGroups) {
+		for (Set<String> typeSet : relGroups) {
+			boolean isFound = false;
+			for (Set<String> allType : allTypes) {
+				if (allType.containsAll(typeSet)) {
+					isFound = true;
+					break;
+				}
+			}
+			if (!isFound) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ExactMatchBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,138 @@
+package org.ihtsdo.otf.authoringtemplate.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ihtsdo.otf.authoringtemplate.service.GenerationPlan;
+import org.ihtsdo.otf.authoringtemplate.transform.TestDataHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.snomed.authoringtemplate.domain.Axiom;
+import org.snomed.authoringtemplate.domain.CaseSignificance;
+import org.snomed.authoringtemplate.domain.ConceptMini;
+import org.snomed.authoringtemplate.domain.ConceptOutline;
+import org.snomed.authoringtemplate.domain.ConceptTemplate;
+import org.snomed.authoringtemplate.domain.Description;
+import org.snomed.authoringtemplate.domain.DescriptionType;
+import org.snomed.authoringtemplate.domain.Relationship;
+import org.snomed.authoringtemplate.domain.SimpleSlot;
+
+/**
+ * Compares expanding input rows with a precompiled {@link GenerationPlan} against the previous per row expansion,
+ * which resolved slot positions by name and cloned every template description for each concept. The previous path is kept
+ * in TestDataHelper as the baseline, where GenerationPlanTest also uses it to check both paths produce the same concepts.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.ihtsdo.otf.authoringtemplate.benchmark.GenerationPlanBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerationPlanBenchmark {
+
+	@Param({"2", "10"})
+	private int slotCount;
+
+	@Param({"50", "10000"})
+	private int rowCount;
+
+	private ConceptTemplate template;
+
+	private List<String> slotNames;
+
+	private List<List<String>> slotColumnValues;
+
+	private GenerationPlan plan;
+
+	@Setup
+	public void setUp() {
+		List<Relationship> relationships = new ArrayList<>();
+		Relationship isA = new Relationship();
+		isA.setCardinalityMin("1");
+		isA.setCardinalityMax("1");
+		isA.setGroupId(0);
+		isA.setType(new ConceptMini("116680003"));
+		isA.setTarget(new ConceptMini("71388002"));
+		relationships.add(isA);
+		slotNames = new ArrayList<>();
+		StringBuilder termTemplate = new StringBuilder("Procedure");
+		for (int i = 0; i < slotCount; i++) {
+			Relationship fixed = new Relationship();
+			fixed.setCardinalityMin("1");
+			fixed.setCardinalityMax("1");
+			fixed.setGroupId(i + 1);
+			fixed.setType(new ConceptMini("260686004"));
+			fixed.setTarget(new ConceptMini("312251004"));
+			relationships.add(fixed);
+			Relationship slot = new Relationship();
+			// Every third slot is optional
+			slot.setCardinalityMin(i % 3 == 2 ? "0" : "1");
+			slot.setCardinalityMax("1");
+			slot.setGroupId(i + 1);
+			slot.setType(new ConceptMini("405813007"));
+			slot.setTargetSlot(new SimpleSlot("slot" + i, "<< 442083009 |Anatomical or acquired body structure|"));
+			relationships.add(slot);
+			slotNames.add("slot" + i);
+			termTemplate.append(" of $term").append(i).append("$");
+		}
+		Axiom axiom = new Axiom();
+		axiom.setRelationships(relationships);
+		ConceptOutline conceptOutline = new ConceptOutline();
+		for (DescriptionType type : new DescriptionType[] {DescriptionType.FSN, DescriptionType.SYNONYM, DescriptionType.SYNONYM}) {
+			Description description = new Description(termTemplate.toString());
+			description.setType(type);
+			description.setCaseSignificance(CaseSignificance.CASE_INSENSITIVE);
+			conceptOutline.addDescription(description);
+		}
+		conceptOutline.addAxiom(axiom);
+		template = new ConceptTemplate();
+		template.setName("Benchmark template");
+		template.setConceptOutline(conceptOutline);
+
+		slotColumnValues = new ArrayList<>();
+		for (int column = 0; column < slotCount; column++) {
+			List<String> values = new ArrayList<>();
+			for (int row = 0; row < rowCount; row++) {
+				values.add(column % 3 == 2 && row % 2 == 0 ? "" : String.valueOf(12656001 + row * 100 + column));
+			}
+			slotColumnValues.add(values);
+		}
+		plan = new GenerationPlan(template);
+	}
+
+	@Benchmark
+	public List<ConceptOutline> perRowExpansion() {
+		List<ConceptOutline> generatedConcepts = TestDataHelper.constructConceptOutlines(template, slotColumnValues, slotNames);
+		template.getConceptOutline().getDescriptions().forEach(description -> generatedConcepts.forEach(concept -> concept.addDescription(description.clone())));
+		return generatedConcepts;
+	}
+
+	@Benchmark
+	public List<ConceptOutline> generationPlan() {
+		List<ConceptOutline> generatedConcepts = new ArrayList<>(rowCount);
+		for (int i = 0; i < rowCount; i++) {
+			ConceptOutline concept = plan.expand(slotColumnValues, i);
+			concept.setDescriptions(plan.getDescriptionSkeletons());
+			generatedConcepts.add(concept);
+		}
+		return generatedConcepts;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(GenerationPlanBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,161 @@
+package org.ihtsdo.otf.authoringtemplate.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.ihtsdo.otf.authoringtemplate.service.TemplateUtil;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.snomed.authoringtemplate.domain.DescriptionType;
+
+/**
+ * Runs the lexical filter loop of a template search over a number of searches, either compiling the term patterns
+ * at the start of each search as before or reusing the patterns compiled with the template.
+ * Most searches only check a handful of concepts, so compiling the patterns is a large part of each of them.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.ihtsdo.otf.authoringtemplate.benchmark.TermPatternBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TermPatternBenchmark {
+
+	private static final int SEARCHES = 1000;
+
+	private static final String FSN_TEMPLATE = "$actionTerm$ of $procSiteTerm$ using computed tomography guidance (procedure)";
+
+	private static final String PT_TEMPLATE = "$actionTerm$ of $procSiteTerm$ using computed tomography guidance";
+
+	@Param({"10", "1000"})
+	private int conceptsPerSearch;
+
+	private Set<String> fsnTemplates;
+
+	private Set<String> ptTemplates;
+
+	private Map<Pattern, Set<String>> precompiledFsnPatterns;
+
+	private Map<Pattern, Set<String>> precompiledPtPatterns;
+
+	private List<ConceptPojo> concepts;
+
+	@Setup
+	public void setUp() {
+		fsnTemplates = new HashSet<>();
+		fsnTemplates.add(FSN_TEMPLATE);
+		ptTemplates = new HashSet<>();
+		ptTemplates.add(PT_TEMPLATE);
+		precompiledFsnPatterns = TemplateUtil.compilePatterns(fsnTemplates);
+		precompiledPtPatterns = TemplateUtil.compilePatterns(ptTemplates);
+		concepts = new ArrayList<>();
+		for (int i = 0; i < conceptsPerSearch; i++) {
+			// Every fifth concept doesn't match the template
+			String action = i % 5 == 0 ? "Biopsy" : "Drainage";
+			String fsn = action + " of structure of site " + i + (i % 5 == 0 ? " (procedure)" : " using computed tomography guidance (procedure)");
+			ConceptPojo concept = new ConceptPojo();
+			concept.setConceptId(String.valueOf(1000000 + i));
+			Set<DescriptionPojo> descriptions = new HashSet<>();
+			descriptions.add(createDescription(fsn, DescriptionType.FSN));
+			descriptions.add(createDescription(fsn.substring(0, fsn.lastIndexOf(" (")), DescriptionType.SYNONYM));
+			concept.setDescriptions(descriptions);
+			concepts.add(concept);
+		}
+	}
+
+	@Benchmark
+	public int compilePatternsOnEachSearch() {
+		int matched = 0;
+		for (int search = 0; search < SEARCHES; search++) {
+			matched += filter(TemplateUtil.compilePatterns(fsnTemplates), TemplateUtil.compilePatterns(ptTemplates));
+		}
+		return matched;
+	}
+
+	@Benchmark
+	public int reusePrecompiledPatterns() {
+		int matched = 0;
+		for (int search = 0; search < SEARCHES; search++) {
+			matched += filter(precompiledFsnPatterns, precompiledPtPatterns);
+		}
+		return matched;
+	}
+
+	// Same loop as TemplateConceptSearchService.isLexicallyMatched
+	private int filter(Map<Pattern, Set<String>> fsnPatterns, Map<Pattern, Set<String>> synonymPatterns) {
+		int matched = 0;
+		for (ConceptPojo concept : concepts) {
+			List<String> synonyms = getActiveTerms(concept, DescriptionType.SYNONYM);
+			List<String> fsns = getActiveTerms(concept, DescriptionType.FSN);
+			boolean isMatched = false;
+			for (Pattern pattern : fsnPatterns.keySet()) {
+				isMatched = isPatternMatched(pattern, fsns);
+				if (!isMatched) {
+					break;
+				}
+			}
+			for (Pattern pattern : synonymPatterns.keySet()) {
+				isMatched = isPatternMatched(pattern, synonyms);
+				if (!isMatched) {
+					break;
+				}
+			}
+			if (isMatched) {
+				matched++;
+			}
+		}
+		return matched;
+	}
+
+	private List<String> getActiveTerms(ConceptPojo concept, DescriptionType type) {
+		return concept.getDescriptions()
+				.stream()
+				.filter(DescriptionPojo::isActive)
+				.filter(d -> d.getType().equals(type.name()))
+				.map(DescriptionPojo::getTerm)
+				.collect(Collectors.toList());
+	}
+
+	private boolean isPatternMatched(Pattern pattern, Collection<String> terms) {
+		for (String term : terms) {
+			if (pattern.matcher(term).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private DescriptionPojo createDescription(String term, DescriptionType type) {
+		DescriptionPojo description = new DescriptionPojo();
+		description.setActive(true);
+		description.setTerm(term);
+		description.setType(type.name());
+		return description;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TermPatternBenchmark.class.getSimpleName()).build()).run();
+	}
+}
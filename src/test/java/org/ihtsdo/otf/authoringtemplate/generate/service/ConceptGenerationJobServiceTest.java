@@ -0,0 +1,187 @@
+package org.ihtsdo.otf.authoringtemplate.generate.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.ihtsdo.otf.authoringtemplate.generate.ConceptGenerationJob;
+import org.ihtsdo.otf.authoringtemplate.generate.ConceptGenerationStatus;
+import org.ihtsdo.otf.authoringtemplate.service.AbstractServiceTest;
+import org.ihtsdo.otf.authoringtemplate.service.TemplateConceptCreateService;
+import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
+import org.ihtsdo.otf.rest.exception.ResourceNotFoundException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.snomed.authoringtemplate.domain.CaseSignificance;
+import org.snomed.authoringtemplate.domain.ConceptOutline;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ConceptGenerationJobServiceTest extends AbstractServiceTest {
+
+	private static final String TEMPLATE_NAME = "CT Guided Procedure of X";
+
+	private static final String INPUT_FILE = "/org/ihtsdo/otf/authoringtemplate/service/2-cols-5-values.txt";
+
+	@Autowired
+	private ConceptGenerationJobService jobService;
+
+	@Autowired
+	private TemplateConceptCreateService createService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	private int batchMaxSize;
+
+	@Before
+	public void setUp() throws Exception {
+		createCtGuidedProcedureOfX();
+		batchMaxSize = (int) ReflectionTestUtils.getField(createService, "batchMaxSize");
+		ReflectionTestUtils.setField(createService, "batchMaxSize", 2);
+		Set<String> withinRange = new HashSet<>(Arrays.asList("12656001", "63303001", "63124001", "63125000", "24626005",
+				"419988009", "415186003", "426865009", "426530000", "426413004"));
+		when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt())).thenAnswer(invocation -> {
+			String ecl = invocation.getArgument(1);
+			return withinRange.stream().filter(ecl::contains).collect(Collectors.toSet());
+		});
+	}
+
+	@After
+	public void tearDown() {
+		ReflectionTestUtils.setField(createService, "batchMaxSize", batchMaxSize);
+	}
+
+	@Test
+	public void testJobCompletedWithResults() throws Exception {
+		when(terminologyServerClient.searchConcepts(anyString(), anyList())).thenAnswer(invocation -> {
+			List<String> conceptIds = invocation.getArgument(1);
+			return conceptIds.stream().map(this::createConceptPojo).collect(Collectors.toList());
+		});
+
+		ConceptGenerationJob job = createJob();
+		assertEquals(ConceptGenerationStatus.QUEUED, jobService.getJob(job.getJobId()).getStatus());
+		jobService.generateAsynchronously(job, terminologyServerClient);
+
+		ConceptGenerationJob completed = waitForJob(job.getJobId());
+		assertEquals(ConceptGenerationStatus.COMPLETED, completed.getStatus());
+		assertEquals(3, completed.getCompletedBatches());
+		assertEquals(5, completed.getProcessedRows());
+		assertEquals(5, completed.getGeneratedConcepts());
+		assertEquals(0, completed.getFailedRows());
+
+		List<ConceptOutline> concepts = readResults(job.getJobId());
+		assertEquals(5, concepts.size());
+		assertEquals("24626005", getRelationships(concepts.get(4)).get(2).getTarget().getConceptId());
+	}
+
+	@Test
+	public void testJobFailedByUncheckedException() throws Exception {
+		when(terminologyServerClient.searchConcepts(anyString(), anyList())).thenThrow(new IllegalStateException("Connection reset"));
+
+		ConceptGenerationJob job = createJob();
+		jobService.generateAsynchronously(job, terminologyServerClient);
+
+		ConceptGenerationJob failed = waitForJob(job.getJobId());
+		assertEquals(ConceptGenerationStatus.FAILED, failed.getStatus());
+		assertEquals("Connection reset", failed.getErrorMsg());
+		assertEquals(0, failed.getCompletedBatches());
+		assertTrue(readResults(job.getJobId()).isEmpty());
+	}
+
+	@Test
+	public void testQueuedJobMarkedInterruptedOnRestart() throws Exception {
+		ConceptGenerationJob job = createJob();
+		assertTrue(jobService.getActiveJobIds().contains(job.getJobId()));
+
+		jobService.markInterruptedJobs();
+		ConceptGenerationJob interrupted = jobService.getJob(job.getJobId());
+		assertEquals(ConceptGenerationStatus.INTERRUPTED, interrupted.getStatus());
+		assertTrue(interrupted.getErrorMsg().startsWith("Interrupted by a service restart after 0 batches"));
+		assertFalse(jobService.getActiveJobIds().contains(job.getJobId()));
+	}
+
+	@Test(expected = ResourceNotFoundException.class)
+	public void testResultsOfUnknownJob() throws IOException {
+		jobService.writeResults("unknown", new ByteArrayOutputStream());
+	}
+
+	@Test(expected = ResourceNotFoundException.class)
+	public void testResultsWithMissingBatch() throws Exception {
+		ConceptGenerationJob job = createJob();
+		job.recordBatch(2, 2, Collections.emptyList());
+		jobService.update(job);
+		jobService.writeResults(job.getJobId(), new ByteArrayOutputStream());
+	}
+
+	private ConceptGenerationJob createJob() throws IOException, ServiceException {
+		try (InputStream input = getClass().getResourceAsStream(INPUT_FILE)) {
+			return jobService.createJob("MAIN/test", TEMPLATE_NAME, input);
+		}
+	}
+
+	private ConceptGenerationJob waitForJob(String jobId) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			ConceptGenerationJob job = jobService.getJob(jobId);
+			if (ConceptGenerationStatus.QUEUED != job.getStatus() && ConceptGenerationStatus.RUNNING != job.getStatus()) {
+				return job;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				fail("Concept generation job " + jobId + " didn't finish in time");
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	private List<ConceptOutline> readResults(String jobId) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		jobService.writeResults(jobId, output);
+		List<ConceptOutline> concepts = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output.toByteArray()), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				concepts.add(objectMapper.readValue(line, ConceptOutline.class));
+			}
+		}
+		return concepts;
+	}
+
+	private ConceptPojo createConceptPojo(String conceptId) {
+		ConceptPojo pojo = new ConceptPojo();
+		pojo.setActive(true);
+		pojo.setConceptId(conceptId);
+		DescriptionPojo fsn = new DescriptionPojo();
+		fsn.setActive(true);
+		fsn.setTerm("Concept " + conceptId + " (body structure)");
+		fsn.setType("FSN");
+		fsn.setCaseSignificance(CaseSignificance.CASE_INSENSITIVE.name());
+		pojo.setDescriptions(new HashSet<>(Collections.singleton(fsn)));
+		return pojo;
+	}
+}
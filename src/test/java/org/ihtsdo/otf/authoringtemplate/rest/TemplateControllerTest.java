@@ -59,6 +59,12 @@ public class TemplateControllerTest extends AbstractTest {
 				.andExpect(status().isOk());
 	}
 	
+	@Test
+	public void getResultsOfUnknownConceptGenerationJob() throws Exception {
+		mockMvc.perform(get("/templates/generate/jobs/unknown/results"))
+				.andExpect(status().isNotFound());
+	}
+
 	@After
 	public void tearDown() throws IOException {
 		FileUtils.deleteDirectory(jsonStore.getStoreDirectory());
@@ -0,0 +1,125 @@
+package org.ihtsdo.otf.authoringtemplate.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ihtsdo.otf.authoringtemplate.transform.TestDataHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.snomed.authoringtemplate.domain.Axiom;
+import org.snomed.authoringtemplate.domain.CaseSignificance;
+import org.snomed.authoringtemplate.domain.ConceptMini;
+import org.snomed.authoringtemplate.domain.ConceptOutline;
+import org.snomed.authoringtemplate.domain.ConceptTemplate;
+import org.snomed.authoringtemplate.domain.Description;
+import org.snomed.authoringtemplate.domain.DescriptionType;
+import org.snomed.authoringtemplate.domain.Relationship;
+import org.snomed.authoringtemplate.domain.SimpleSlot;
+
+@RunWith(JUnit4.class)
+public class GenerationPlanTest {
+
+	private static final List<String> SLOT_NAMES = Arrays.asList("procSite", "action", "qualifierTerm");
+
+	private ConceptTemplate template;
+
+	private GenerationPlan plan;
+
+	@Before
+	public void setUp() {
+		// Mandatory slot, optional slot, references to both an input slot and a slot without a column, plus an additional term column
+		Axiom axiom = new Axiom();
+		axiom.setRelationships(new ArrayList<>(Arrays.asList(
+				createRelationship(0, "1", "116680003", new ConceptMini("71388002"), null),
+				createRelationship(1, "1", "260686004", new ConceptMini("312251004"), null),
+				createRelationship(1, "1", "405813007", null, new SimpleSlot("procSite", "<< 442083009 |Anatomical or acquired body structure|")),
+				createRelationship(2, "0", "260686004", null, new SimpleSlot("action", "<< 129264002 |Action|")),
+				createRelationship(2, "1", "405813007", null, new SimpleSlot("procSite")),
+				createRelationship(2, "0", "272741003", null, new SimpleSlot("laterality")))));
+		ConceptOutline conceptOutline = new ConceptOutline();
+		conceptOutline.addAxiom(axiom);
+		Description fsn = new Description("$actionTerm$ of $procSiteTerm$ using computed tomography guidance (procedure)");
+		fsn.setType(DescriptionType.FSN);
+		fsn.setCaseSignificance(CaseSignificance.CASE_INSENSITIVE);
+		conceptOutline.addDescription(fsn);
+		template = new ConceptTemplate();
+		template.setName("CT guided procedure");
+		template.setConceptOutline(conceptOutline);
+		template.setAdditionalSlots(Arrays.asList("qualifierTerm"));
+		plan = new GenerationPlan(template);
+	}
+
+	@Test
+	public void testSlotColumns() {
+		assertEquals(SLOT_NAMES, plan.getSlotNames());
+		assertEquals(2, plan.getSlotsRequiringInput().size());
+		assertEquals(1, plan.getAdditionalSlotCount());
+		assertEquals(2, plan.getConceptColumnCount());
+		assertEquals(1, plan.getDescriptionSkeletons().size());
+	}
+
+	@Test
+	public void testExpandMatchesPerRowExpansion() {
+		List<List<String>> slotColumnValues = Arrays.asList(
+				Arrays.asList("12656001", "63303001", "63124001"),
+				Arrays.asList("129264002", "", "  "),
+				Arrays.asList("left", "right", ""));
+		List<ConceptOutline> expected = TestDataHelper.constructConceptOutlines(template, slotColumnValues, SLOT_NAMES);
+		assertEquals(3, expected.size());
+		for (int row = 0; row < expected.size(); row++) {
+			ConceptOutline concept = plan.expand(slotColumnValues, row);
+			assertEquals(describe(expected.get(row)), describe(concept));
+		}
+
+		List<Relationship> withAction = plan.expand(slotColumnValues, 0).getClassAxioms().iterator().next().getRelationships();
+		assertEquals(5, withAction.size());
+		assertEquals("129264002", withAction.get(3).getTarget().getConceptId());
+		assertEquals("12656001", withAction.get(4).getTarget().getConceptId());
+
+		// Optional slots left empty are omitted
+		List<Relationship> withoutAction = plan.expand(slotColumnValues, 1).getClassAxioms().iterator().next().getRelationships();
+		assertEquals(4, withoutAction.size());
+		assertEquals("63303001", withoutAction.get(3).getTarget().getConceptId());
+		assertEquals(4, plan.expand(slotColumnValues, 2).getClassAxioms().iterator().next().getRelationships().size());
+	}
+
+	@Test
+	public void testExpandedConceptsDoNotShareRelationships() {
+		List<List<String>> slotColumnValues = Arrays.asList(Arrays.asList("12656001", "63303001"),
+				Arrays.asList("129264002", "129264002"), Arrays.asList("", ""));
+		Relationship first = plan.expand(slotColumnValues, 0).getClassAxioms().iterator().next().getRelationships().get(0);
+		first.setTarget(new ConceptMini("123456"));
+		Relationship second = plan.expand(slotColumnValues, 1).getClassAxioms().iterator().next().getRelationships().get(0);
+		assertEquals("71388002", second.getTarget().getConceptId());
+	}
+
+	private List<String> describe(ConceptOutline concept) {
+		List<String> relationships = new ArrayList<>();
+		for (Axiom axiom : concept.getClassAxioms()) {
+			for (Relationship relationship : axiom.getRelationships()) {
+				SimpleSlot slot = relationship.getTargetSlot();
+				relationships.add(String.join("|", String.valueOf(relationship.getGroupId()), relationship.getType().getConceptId(),
+						relationship.getTarget() == null ? null : relationship.getTarget().getConceptId(),
+						relationship.getCardinalityMin(), relationship.getCardinalityMax(),
+						slot == null ? null : slot.getSlotName(), slot == null ? null : slot.getSlotReference()));
+			}
+		}
+		return relationships;
+	}
+
+	private Relationship createRelationship(int groupId, String cardinalityMin, String type, ConceptMini target, SimpleSlot targetSlot) {
+		Relationship relationship = new Relationship();
+		relationship.setCardinalityMin(cardinalityMin);
+		relationship.setCardinalityMax("1");
+		relationship.setGroupId(groupId);
+		relationship.setType(new ConceptMini(type));
+		relationship.setTarget(target);
+		relationship.setTargetSlot(targetSlot);
+		return relationship;
+	}
+}
@@ -11,6 +11,8 @@ import org.springframework.web.util.UriComponentsBuilder;
 import static org.junit.Assert.assertEquals;
 
 import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -35,6 +37,35 @@ public class JsonStoreTest extends AbstractServiceTest{
 		final Set<ConceptMini> conceptMinis = jsonStore.loadAll(ConceptMini.class);
 		Assert.assertEquals(3, conceptMinis.size());
 	}
+
+	@Test
+	public void testSaveReplacesFileWithoutLeavingTempFiles() throws Exception {
+		jsonStore.save("one", new ConceptMini("100"));
+		jsonStore.save("one", new ConceptMini("200"));
+		Assert.assertEquals("200", jsonStore.load("one", ConceptMini.class).getConceptId());
+		Assert.assertEquals(1, jsonStore.getStoreDirectory().listFiles().length);
+	}
+
+	@Test
+	public void testSaveAll() throws Exception {
+		Map<String, ConceptMini> concepts = new HashMap<>();
+		concepts.put("one", new ConceptMini("100"));
+		concepts.put("two", new ConceptMini("200"));
+		jsonStore.saveAll(concepts);
+		Assert.assertEquals(concepts.keySet(), jsonStore.listNames());
+		Assert.assertEquals("200", jsonStore.load("two", ConceptMini.class).getConceptId());
+		Assert.assertEquals(2, jsonStore.getStoreDirectory().listFiles().length);
+	}
+
+	@Test
+	public void testListNames() throws Exception {
+		jsonStore.save("one", new ConceptMini("100"));
+		jsonStore.save("two", new ConceptMini("200"));
+		final Set<String> names = jsonStore.listNames();
+		Assert.assertEquals(2, names.size());
+		Assert.assertTrue(names.contains("one"));
+		Assert.assertTrue(names.contains("two"));
+	}
 	
 	
 	@Test
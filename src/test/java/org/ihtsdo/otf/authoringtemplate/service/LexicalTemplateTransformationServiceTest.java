@@ -1,6 +1,7 @@
 package org.ihtsdo.otf.authoringtemplate.service;
 import static org.ihtsdo.otf.authoringtemplate.service.Constants.PREFERRED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.snomed.authoringtemplate.domain.CaseSignificance.CASE_INSENSITIVE;
 import static org.snomed.authoringtemplate.domain.CaseSignificance.ENTIRE_TERM_CASE_SENSITIVE;
 import static org.snomed.authoringtemplate.domain.CaseSignificance.INITIAL_CHARACTER_CASE_INSENSITIVE;
@@ -13,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.cache.CacheStats;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.authoringtemplate.transform.TestDataHelper;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
@@ -215,4 +217,34 @@ public class LexicalTemplateTransformationServiceTest extends AbstractServiceTes
 		assertEquals("Contact dermatitis of transplant (disorder)", results.get(0).getTerm());
 		assertEquals(CASE_INSENSITIVE, results.get(0).getCaseSignificance());
 	}
+
+	@Test
+	public void testRepeatedSlotValuesWithDifferentPartsRemoved() throws ServiceException {
+		Map<String, String> slotValueMap = new HashMap<>();
+		slotValueMap.put("clinicalCourse", "Sudden onset AND short duration (qualifier value)");
+		slotValueMap.put("bodyStructure", "Bone structure of right tibia (body structure)");
+		slotValueMap.put("substance", "DPB1*1401 (substance)");
+		Map<String, CaseSignificance> csMap = new HashMap<>();
+		csMap.put("clinicalCourse", INITIAL_CHARACTER_CASE_INSENSITIVE);
+		csMap.put("bodyStructure", CASE_INSENSITIVE);
+		csMap.put("substance", ENTIRE_TERM_CASE_SENSITIVE);
+		Map<String, Set<DescriptionPojo>> slotDescriptionValuesMap = TestDataHelper.constructSlotDescriptionValuesMap(slotValueMap, csMap, DescriptionType.FSN);
+
+		// The second concept reuses the memoized slot values
+		CacheStats before = null;
+		for (int i = 0; i < 2; i++) {
+			before = LexicalTemplateTransformService.getResolvedSlotValuesCache().stats();
+			List<Description> results = LexicalTemplateTransformService.transformDescriptions(lexicalTemplates, descriptions, slotDescriptionValuesMap);
+			assertEquals("Sudden onset AND short duration contact dermatitis of bone of right tibia caused by DPB1*1401 (disorder)", results.get(0).getTerm());
+		}
+		CacheStats secondConcept = LexicalTemplateTransformService.getResolvedSlotValuesCache().stats().minus(before);
+		assertTrue(secondConcept.hitCount() > 0);
+		assertEquals(0, secondConcept.missCount());
+
+		// The same slot value used by a lexical template which doesn't remove any parts
+		LexicalTemplate bodyStructure = new LexicalTemplate("body structure", "[body structure]", "bodyStructure", Collections.emptyList());
+		lexicalTemplates.set(1, bodyStructure);
+		List<Description> results = LexicalTemplateTransformService.transformDescriptions(lexicalTemplates, descriptions, slotDescriptionValuesMap);
+		assertEquals("Sudden onset AND short duration contact dermatitis of bone structure of right tibia caused by DPB1*1401 (disorder)", results.get(0).getTerm());
+	}
 }
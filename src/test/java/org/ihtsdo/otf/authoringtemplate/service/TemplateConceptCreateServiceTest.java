@@ -2,10 +2,13 @@ package org.ihtsdo.otf.authoringtemplate.service;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.BufferedReader;
@@ -15,12 +18,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.ihtsdo.otf.authoringtemplate.rest.error.InputError;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
@@ -36,7 +42,9 @@ import org.snomed.authoringtemplate.domain.CaseSignificance;
 import org.snomed.authoringtemplate.domain.ConceptOutline;
 import org.snomed.authoringtemplate.domain.ConceptTemplate;
 import org.snomed.authoringtemplate.domain.Relationship;
+import org.snomed.authoringtemplate.domain.SimpleSlot;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Sets;
@@ -122,7 +130,7 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 	public void testGenerateConcepts_conceptNotWithinRange() throws IOException, ServiceException {
 		try {
 			createCtGuidedProcedureOfX();
-			mockEclQueryResponse(Collections.singleton("12656001"));
+			mockEclQueryResponse("CT Guided Procedure of X", Collections.singleton("12656001"));
 			conceptCreateService.generateConcepts("MAIN/test", "CT Guided Procedure of X", getClass().getResourceAsStream("batch-ct-of-x-error-outside-of-range.txt"));
 			fail("Should have thrown exception.");
 		} catch (InputError e) {
@@ -134,7 +142,7 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 	@Test
 	public void testGenerateConcepts() throws IOException, ServiceException {
 		createCtGuidedProcedureOfX();
-		mockEclQueryResponse(
+		mockEclQueryResponse("CT Guided Procedure of X",
 				Sets.newHashSet("12656001", "63303001", "63124001", "63125000", "24626005"),
 				Sets.newHashSet("419988009", "415186003", "426865009", "426530000", "426413004"));
 		
@@ -142,6 +150,12 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 
 		List<ConceptOutline> conceptOutlines = conceptCreateService.generateConcepts("MAIN/test", "CT Guided Procedure of X", getClass().getResourceAsStream("2-cols-5-values.txt"));
 		assertEquals(5, conceptOutlines.size());
+		try {
+			// All distinct slot values are fetched in one request rather than one per row
+			verify(terminologyServerClient, times(1)).searchConcepts(anyString(), anyList());
+		} catch (RestClientException e) {
+			throw new RuntimeException(e);
+		}
 
 		ConceptOutline concept = conceptOutlines.get(0);
 		assertEquals(2, concept.getDescriptions().size());
@@ -168,6 +182,48 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 		assertEquals("63124001", relationships.get(5).getTarget().getConceptId());
 	}
 	
+	@Test
+	public void testGenerateConcepts_slotValueWithoutActiveFsn() throws IOException, ServiceException {
+		createCtGuidedProcedureOfX();
+		mockEclQueryResponse("CT Guided Procedure of X",
+				Sets.newHashSet("12656001", "63303001", "63124001", "63125000", "24626005"),
+				Sets.newHashSet("419988009", "415186003", "426865009", "426530000", "426413004"));
+		mockSearchConceptsResponse("63303001");
+		try {
+			conceptCreateService.generateConcepts("MAIN/test", "CT Guided Procedure of X", getClass().getResourceAsStream("2-cols-5-values.txt"));
+			fail("Should have thrown exception.");
+		} catch (ServiceException e) {
+			assertEquals("Slot procSite value 63303001 has no active FSN", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testGenerateConceptsInBatches() throws IOException, ServiceException {
+		createCtGuidedProcedureOfX();
+		Set<String> bodyStructures = Sets.newHashSet("12656001", "63303001", "63124001", "63125000", "24626005");
+		Set<String> actions = Sets.newHashSet("419988009", "415186003", "426865009", "426530000", "426413004");
+		mockEclQueryResponse("CT Guided Procedure of X", bodyStructures, actions);
+		mockSearchConceptsResponse();
+
+		List<Integer> batchRowCounts = new ArrayList<>();
+		List<ConceptOutline> conceptOutlines = new ArrayList<>();
+		ReflectionTestUtils.setField(conceptCreateService, "batchMaxSize", 2);
+		try {
+			conceptCreateService.generateConceptsInBatches("MAIN/test", "CT Guided Procedure of X", getClass().getResourceAsStream("2-cols-5-values.txt"),
+					terminologyServerClient, (batchIndex, rowCount, concepts, errors) -> {
+						assertEquals(batchRowCounts.size(), batchIndex);
+						assertTrue(errors.isEmpty());
+						batchRowCounts.add(rowCount);
+						conceptOutlines.addAll(concepts);
+					});
+		} finally {
+			ReflectionTestUtils.setField(conceptCreateService, "batchMaxSize", 50);
+		}
+		assertEquals(Arrays.asList(2, 2, 1), batchRowCounts);
+		assertEquals(5, conceptOutlines.size());
+		assertEquals("24626005", getRelationships(conceptOutlines.get(4)).get(2).getTarget().getConceptId());
+	}
+
 	@Test
 	public void testGenerateLoincConcepts() throws IOException, ServiceException {
 		String templateName = "LOINC Template - Quality Observable";
@@ -196,7 +252,7 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 				"\t118598001\t7389001\t123037004\t123037004\t30766002\tLOINC FSN 1\tID 1\n" + // Line 1
 				"123037004\t118598001\t7389001\t123037004\t123037004\t\tLOINC FSN 2\tID 2\n"+ // Line 2
 				" \t118598001\t7389001\t123037004\t123037004\t \tLOINC FSN 2\tID 2\n"; // Line 3
-		mockEclQueryResponse(
+		mockEclQueryResponse(templateName,
 				Sets.newHashSet("123037004"),
 				Sets.newHashSet("118598001"),
 				Sets.newHashSet("7389001"),
@@ -253,7 +309,7 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 		return when(clientFactory.getClient()).thenReturn(terminologyServerClient);
 	}
 	
-	private void mockSearchConceptsResponse() {
+	private void mockSearchConceptsResponse(String... conceptIdsWithoutActiveFsn) {
 		expectGetTerminologyServerClient();
 		OngoingStubbing<List<ConceptPojo>> when;
 		try {
@@ -276,16 +332,18 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 		conceptFsnMap.put("426530000", "Open reduction - action (qualifier value)");
 		conceptFsnMap.put("24626005", "Structure of root of mesentery (body structure)");
 		conceptFsnMap.put("426413004", "Closed reduction - action (qualifier value)");
-		when.thenReturn(mockConceptPojos(conceptFsnMap));
+		when.thenReturn(mockConceptPojos(conceptFsnMap, Arrays.asList(conceptIdsWithoutActiveFsn)));
 	}
 
-	private List<ConceptPojo> mockConceptPojos(Map<String, String> conceptFsnMap) {
+	private List<ConceptPojo> mockConceptPojos(Map<String, String> conceptFsnMap, List<String> conceptIdsWithoutActiveFsn) {
 		List<ConceptPojo> results = new ArrayList<>();
 		for (String conceptId : conceptFsnMap.keySet()) {
 			ConceptPojo pojo = new ConceptPojo();
 			pojo.setActive(true);
 			pojo.setConceptId(conceptId);
 			DescriptionPojo fsn = new DescriptionPojo();
+			fsn.setConceptId(conceptId);
+			fsn.setActive(!conceptIdsWithoutActiveFsn.contains(conceptId));
 			fsn.setTerm(conceptFsnMap.get(conceptId));
 			fsn.setType("FSN");
 			fsn.setCaseSignificance(CaseSignificance.CASE_INSENSITIVE.name());
@@ -297,16 +355,35 @@ public class TemplateConceptCreateServiceTest extends AbstractServiceTest{
 		return results;
 	}
 
-	private void mockEclQueryResponse(Set<String>... conceptIdResults) {
+	/**
+	 * Each validation query returns those of the given concepts which appear in its ECL,
+	 * so the answer doesn't depend on the order the columns are queried in.
+	 */
+	/**
+	 * Answers each validation query from the concepts within range of the slot it was made for, in the order of the template's input columns.
+	 * Slots sharing the same allowable range share their concepts.
+	 */
+	private void mockEclQueryResponse(String templateName, Set<String>... conceptIdResults) throws IOException {
 		expectGetTerminologyServerClient();
-		OngoingStubbing<Set<String>> when;
+		List<SimpleSlot> slots = new GenerationPlan(templateService.loadOrThrow(templateName)).getSlotsRequiringInput();
+		Map<String, Set<String>> withinRangeBySlotEcl = new LinkedHashMap<>();
+		for (int i = 0; i < slots.size(); i++) {
+			Set<String> withinRange = withinRangeBySlotEcl.computeIfAbsent(slots.get(i).getAllowableRangeECL(), ecl -> new HashSet<>());
+			if (i < conceptIdResults.length) {
+				withinRange.addAll(conceptIdResults[i]);
+			}
+		}
 		try {
-			when = when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt()));
+			when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt())).thenAnswer(invocation -> {
+				String ecl = invocation.getArgument(1);
+				return withinRangeBySlotEcl.entrySet().stream()
+						.filter(slotEcl -> ecl.startsWith("(" + slotEcl.getKey() + ") AND ("))
+						.flatMap(slotEcl -> slotEcl.getValue().stream())
+						.filter(ecl::contains)
+						.collect(Collectors.toSet());
+			});
 		} catch (RestClientException e) {
 			throw new RuntimeException(e);
 		}
-		for (Set<String> conceptIdResult : conceptIdResults) {
-			when = when.thenReturn(conceptIdResult);
-		}
 	}
 }
@@ -19,6 +19,7 @@ import org.snomed.authoringtemplate.domain.logical.LogicalTemplate;
 import org.snomed.authoringtemplate.service.LogicalTemplateParserService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.io.File;
@@ -26,12 +27,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+// One concept per chunk, one fetch thread with two chunks in flight and a one second time limit
 @RunWith(SpringJUnit4ClassRunner.class)
+@TestPropertySource(locations = "classpath:template-search-test.properties")
 public class TemplateConceptSearchServiceTest extends AbstractServiceTest {
 
 	private static final String TEMPLATES = "/templates/";
@@ -111,6 +120,105 @@ public class TemplateConceptSearchServiceTest extends AbstractServiceTest {
 		assertEquals(1, concepts.size());
 	}
 	
+	@Test
+	public void searchConceptsLogicallyInChunks() throws Exception {
+		String templateName = "CT guided [procedure] of [body structure]";
+		setUpTemplate(templateName);
+		ConceptPojo testConcept = TestDataHelper.createCTGuidedProcedureConcept(true);
+		when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt(), anyBoolean()))
+			.thenReturn(new HashSet<>(Arrays.asList(testConcept.getConceptId(), "123456789")));
+		
+		when(terminologyServerClient.searchConcepts(anyString(), anyList()))
+			.thenReturn(Collections.singletonList(testConcept), Collections.emptyList());
+		
+		List<Collection<String>> chunks = new ArrayList<>();
+		searchService.searchConceptsByTemplate(templateName, "test", true, null, true, chunks::add);
+		verify(terminologyServerClient, times(2)).searchConcepts(anyString(), anyList());
+		assertEquals(2, chunks.size());
+		assertEquals(1, chunks.get(0).size());
+		assertEquals(1, chunks.get(1).size());
+	}
+
+	@Test
+	public void searchConceptsLogicallyFailsWhenResultsReachLimit() throws Exception {
+		String templateName = "CT guided [procedure] of [body structure]";
+		setUpTemplate(templateName);
+		Set<String> conceptIds = new HashSet<>();
+		for (int i = 0; i < TemplateConceptSearchService.MAX; i++) {
+			conceptIds.add(String.valueOf(100000 + i));
+		}
+		when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt(), anyBoolean()))
+			.thenReturn(conceptIds);
+		try {
+			searchService.searchConceptsByTemplate(templateName, "test", true, null, true);
+			fail("Truncated results should not be returned");
+		} catch (ServiceException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("matches more than " + TemplateConceptSearchService.MAX + " concepts"));
+		}
+		verify(terminologyServerClient, times(0)).searchConcepts(anyString(), anyList());
+	}
+
+	@Test
+	public void searchConceptsLogicallyInMoreChunksThanInFlight() throws Exception {
+		String templateName = "CT guided [procedure] of [body structure]";
+		setUpTemplate(templateName);
+		Set<String> conceptIds = new LinkedHashSet<>();
+		for (int i = 1; i <= 10; i++) {
+			conceptIds.add("10000" + i);
+		}
+		when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt(), anyBoolean()))
+			.thenReturn(conceptIds);
+
+		AtomicInteger fetchesStarted = new AtomicInteger();
+		when(terminologyServerClient.searchConcepts(anyString(), anyList())).thenAnswer(invocation -> {
+			fetchesStarted.incrementAndGet();
+			List<String> ids = invocation.getArgument(1);
+			return ids.stream().map(id -> {
+				ConceptPojo concept = TestDataHelper.createCTGuidedProcedureConcept(true);
+				concept.setConceptId(id);
+				return concept;
+			}).collect(Collectors.toList());
+		});
+
+		// The single fetch thread completes the chunks in submission order
+		List<String> results = new ArrayList<>();
+		searchService.searchConceptsByTemplate(templateName, "test", true, null, true, chunk -> {
+			assertEquals(1, chunk.size());
+			results.addAll(chunk);
+			assertTrue("Too many chunks in flight", fetchesStarted.get() <= results.size() + 2);
+		});
+		verify(terminologyServerClient, times(10)).searchConcepts(anyString(), anyList());
+		assertEquals(new ArrayList<>(conceptIds), results);
+	}
+
+	@Test
+	public void searchConceptsLogicallyTimesOutAndCancelsFetches() throws Exception {
+		String templateName = "CT guided [procedure] of [body structure]";
+		setUpTemplate(templateName);
+		when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt(), anyBoolean()))
+			.thenReturn(new LinkedHashSet<>(Arrays.asList("100001", "100002", "100003")));
+
+		CountDownLatch interrupted = new CountDownLatch(1);
+		when(terminologyServerClient.searchConcepts(anyString(), anyList())).thenAnswer(invocation -> {
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+			return Collections.emptyList();
+		});
+
+		try {
+			searchService.searchConceptsByTemplate(templateName, "test", true, null, true);
+			fail("Search should time out while fetches are still running");
+		} catch (ServiceException e) {
+			assertTrue(e.getMessage().contains("timed out after 1 seconds"));
+			assertTrue("Running fetch should be cancelled", interrupted.await(5, TimeUnit.SECONDS));
+			// The queued second chunk is cancelled before it runs and the third is never submitted
+			verify(terminologyServerClient, times(1)).searchConcepts(anyString(), anyList());
+		}
+	}
+
 	@Test
 	public void searchConceptsLogicallyWithoutOptionalAttributeType() throws Exception {
 		String templateName = "CT guided [procedure] of [body structure]";
@@ -211,6 +319,24 @@ public class TemplateConceptSearchServiceTest extends AbstractServiceTest {
 		Set<String> result = searchService.findConceptsNotMatchExactly(Collections.singletonList(concept), logicalTemplate.getAttributeGroups(), logicalTemplate.getUngroupedAttributes(), true);
 		assertTrue(result.isEmpty());
 	}
+
+	@Test
+	public void testExactMatchEvaluatorFindsMissingAndExtraAttributes() throws Exception {
+		String logical = "71388002 |Procedure|:   [[~1..1]] {      260686004 |Method| = 312251004 |Computed tomography imaging action|,      "
+				+ "[[~1..1]] 405813007 |Procedure site - Direct| = [[+id(<< 442083009 |Anatomical or acquired body structure|) @procSite]],      "
+				+ "363703001 |Has intent| = 429892002 |Guidance intent|   },   "
+				+ "{      260686004 |Method| = [[+id (<< 129264002 |Action|) @action]],      "
+				+ "[[~1..1]] 405813007 |Procedure site - Direct| = [[+id $procSite]]   }";
+		LogicalTemplate logicalTemplate = logicalTemplateParser.parseTemplate(logical);
+		ExactMatchEvaluator evaluator = new ExactMatchEvaluator(logicalTemplate.getAttributeGroups(), logicalTemplate.getUngroupedAttributes());
+		ConceptPojo concept = TestDataHelper.createCTGuidedProcedureConcept(true);
+		assertEquals(0, evaluator.evaluate(concept, true));
+
+		RelationshipPojo extra = new RelationshipPojo(1, "424226004", "123456", TestDataHelper.STATED_RELATIONSHIP);
+		concept.getClassAxioms().iterator().next().getRelationships().add(extra);
+		assertEquals(ExactMatchEvaluator.EXTRA_ATTRIBUTE, evaluator.evaluate(concept, true));
+
+		concept.getClassAxioms().iterator().next().getRelationships().removeIf(r -> "405813007".equals(r.getType().getConceptId()));
+		assertEquals(ExactMatchEvaluator.MISSING_MANDATORY_ATTRIBUTE | ExactMatchEvaluator.EXTRA_ATTRIBUTE, evaluator.evaluate(concept, true));
+	}
 }
-	
-	
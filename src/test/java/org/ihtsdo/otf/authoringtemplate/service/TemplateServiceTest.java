@@ -1,15 +1,31 @@
 package org.ihtsdo.otf.authoringtemplate.service;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.assertj.core.util.Lists;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
@@ -25,6 +41,7 @@ import org.snomed.authoringtemplate.domain.DefinitionStatus;
 import org.snomed.authoringtemplate.domain.Description;
 import org.snomed.authoringtemplate.domain.LexicalTemplate;
 import org.snomed.authoringtemplate.domain.Relationship;
+import org.springframework.test.util.ReflectionTestUtils;
 
 public class TemplateServiceTest extends AbstractServiceTest {
 
@@ -119,26 +136,135 @@ public class TemplateServiceTest extends AbstractServiceTest {
 		assertEquals("proc", lex.get(0).getName());
 	}
 
+	@Test
+	public void testCompiledTemplateCachedUntilUpdated() throws Exception {
+		createCtGuidedProcedureOfX();
+		final ConceptTemplate template = templateService.load("CT Guided Procedure of X");
+		final CompiledTemplate compiled = templateStore.getCompiledTemplate(template);
+		assertSame(compiled, templateStore.getCompiledTemplate(template));
+		assertEquals("71388002", compiled.getLogicalTemplate().getFocusConcepts().get(0));
+
+		final ConceptTemplate updated = templateService.update("CT Guided Procedure of X", templateService.load("CT Guided Procedure of X"));
+		assertEquals(2, updated.getVersion());
+		final CompiledTemplate recompiled = templateStore.getCompiledTemplate(updated);
+		assertNotSame(compiled, recompiled);
+		assertSame(recompiled, templateStore.getCompiledTemplate(templateService.load("CT Guided Procedure of X")));
+	}
+
+	@Test
+	public void testExportAndImportTemplates() throws Exception {
+		createTemplateWithFocusConcept("one", "302509004");
+		createTemplateWithFocusConcept("two", "71388002");
+
+		ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+		templateService.exportTemplates(ndjson, TemplateArchiveFormat.NDJSON);
+		assertEquals(2, new String(ndjson.toByteArray(), UTF_8).split("\n").length);
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		templateService.exportTemplates(zip, TemplateArchiveFormat.ZIP);
+
+		Set<String> imported = templateService.importTemplates(new ByteArrayInputStream(ndjson.toByteArray()), TemplateArchiveFormat.NDJSON);
+		assertEquals(new TreeSet<>(Arrays.asList("one", "two")), imported);
+		assertEquals(2, templateService.load("one").getVersion());
+		templateService.importTemplates(new ByteArrayInputStream(zip.toByteArray()), TemplateArchiveFormat.ZIP);
+		assertEquals(3, templateService.load("two").getVersion());
+		assertEquals("71388002", templateService.load("two").getFocusConcept());
+		assertEquals(2, templateStore.getJsonStore().listNames().size());
+	}
+
+	@Test
+	public void testImportWithInvalidTemplateSavesNone() throws Exception {
+		String ndjson = "{\"name\":\"three\",\"logicalTemplate\":\"71388002\",\"conceptOutline\":{}}\n"
+				+ "{\"name\":\"four\",\"logicalTemplate\":\"not a template\",\"conceptOutline\":{}}\n";
+		try {
+			templateService.importTemplates(new ByteArrayInputStream(ndjson.getBytes(UTF_8)), TemplateArchiveFormat.NDJSON);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("four"));
+		}
+		assertNull(templateService.load("three"));
+		assertTrue(templateStore.getJsonStore().listNames().isEmpty());
+	}
+
+	@Test
+	public void testParallelLoadReportsEveryBadTemplateAndLoadsNone() throws Exception {
+		createTemplateWithFocusConcept("one", "302509004");
+		File storeDirectory = templateStore.getJsonStore().getStoreDirectory();
+		Files.write(new File(storeDirectory, "two.json").toPath(),
+				"{\"name\":\"two\",\"logicalTemplate\":\"71388002\",\"conceptOutline\":{}}".getBytes(UTF_8));
+		Files.write(new File(storeDirectory, "unreadable.json").toPath(), "{\"name\":".getBytes(UTF_8));
+		Files.write(new File(storeDirectory, "unparsable.json").toPath(),
+				"{\"name\":\"unparsable\",\"logicalTemplate\":\"not a template\",\"conceptOutline\":{}}".getBytes(UTF_8));
+		assertTrue((boolean) ReflectionTestUtils.getField(templateStore, "parallelLoad"));
+		try {
+			templateStore.init();
+			fail("Expected ServiceException");
+		} catch (ServiceException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to load 2 templates"));
+			assertTrue(e.getMessage(), e.getMessage().contains("unreadable="));
+			assertTrue(e.getMessage(), e.getMessage().contains("unparsable="));
+		}
+		// The previous cache is kept so the valid template added on disk isn't loaded either
+		assertNotNull(templateService.load("one"));
+		assertNull(templateService.load("two"));
+	}
+
 	@Test
 	public void testListAll() throws Exception {
-		String focusConcept = "302509004";
-		createTemplateWithFocusConcept("one", focusConcept);
-		expectGetTerminologyServerClient();
+		ReflectionTestUtils.setField(templateService, "listingBatchEcl", false);
+		try {
+			String focusConcept = "302509004";
+			createTemplateWithFocusConcept("one", focusConcept);
+			expectGetTerminologyServerClient();
+
+			templateService.listAll("MAIN/task", new String[] {"123037004"}, null);
+			assertEclExpressionCreated("(302509004 AND <<123037004)");
+
+			templateService.listAll("MAIN/task", null, new String[]{"123037004"});
+			assertEclExpressionCreated("(302509004 AND >>123037004)");
+
+			templateService.listAll("MAIN/task", new String[] {"123037004"}, new String[] {"123037004"});
+			assertEclExpressionCreated("(302509004 AND <<123037004) OR (302509004 AND >>123037004)");
+
+			templateService.listAll("MAIN/task", new String[] {"123037004", "123037004"}, null);
+			assertEclExpressionCreated("(302509004 AND <<123037004) OR (302509004 AND <<123037004)");
+
+			templateService.listAll("MAIN/task", new String[] {"123037004", "123037004"}, new String[] {"123037004", "123037004"});
+			assertEclExpressionCreated("(302509004 AND <<123037004) OR (302509004 AND <<123037004) OR (302509004 AND >>123037004) OR (302509004 AND >>123037004)");
+		} finally {
+			ReflectionTestUtils.setField(templateService, "listingBatchEcl", true);
+		}
+	}
 
-		templateService.listAll("MAIN/task", new String[] {"123037004"}, null);
-		assertEclExpressionCreated("(302509004 AND <<123037004)");
+	@Test
+	public void testListAllWithBatchedEcl() throws Exception {
+		createTemplateWithFocusConcept("one", "302509004");
+		createTemplateWithFocusConcept("two", "71388002");
+		createTemplateWithFocusConcept("three", "404684003");
+		expectGetTerminologyServerClient();
+		when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt())).thenReturn(Collections.singleton("71388002"));
 
-		templateService.listAll("MAIN/task", null, new String[]{"123037004"});
-		assertEclExpressionCreated("(302509004 AND >>123037004)");
+		Set<ConceptTemplate> templates = templateService.listAll("MAIN/task", new String[] {"123037004"}, new String[] {"138875005"});
+		assertEquals(1, templates.size());
+		assertEquals("71388002", templates.iterator().next().getFocusConcept());
+		verify(terminologyServerClient).eclQuery("MAIN/task", "(302509004 OR 404684003 OR 71388002) AND (<<123037004 OR >>138875005)", 3);
+		verify(terminologyServerClient, never()).eclQueryHasAnyMatches(anyString(), anyString());
+		reset(terminologyServerClient);
+	}
 
-		templateService.listAll("MAIN/task", new String[] {"123037004"}, new String[] {"123037004"});
-		assertEclExpressionCreated("(302509004 AND <<123037004) OR (302509004 AND >>123037004)");
+	@Test
+	public void testListAllCachesFocusConceptFilter() throws Exception {
+		createTemplateWithFocusConcept("one", "302509004");
+		expectGetTerminologyServerClient();
+		when(terminologyServerClient.eclQuery(anyString(), anyString(), anyInt())).thenReturn(Collections.singleton("302509004"));
 
-		templateService.listAll("MAIN/task", new String[] {"123037004", "123037004"}, null);
-		assertEclExpressionCreated("(302509004 AND <<123037004) OR (302509004 AND <<123037004)");
+		assertEquals(1, templateService.listAll("MAIN/task", new String[] {"404684003"}, null).size());
+		assertEquals(1, templateService.listAll("MAIN/task", new String[] {"404684003"}, null).size());
+		verify(terminologyServerClient, times(1)).eclQuery(anyString(), anyString(), anyInt());
 
-		templateService.listAll("MAIN/task", new String[] {"123037004", "123037004"}, new String[] {"123037004", "123037004"});
-		assertEclExpressionCreated("(302509004 AND <<123037004) OR (302509004 AND <<123037004) OR (302509004 AND >>123037004) OR (302509004 AND >>123037004)");
+		templateService.reloadCache();
+		templateService.listAll("MAIN/task", new String[] {"404684003"}, null);
+		verify(terminologyServerClient, times(2)).eclQuery(anyString(), anyString(), anyInt());
+		reset(terminologyServerClient);
 	}
 
 	@Test
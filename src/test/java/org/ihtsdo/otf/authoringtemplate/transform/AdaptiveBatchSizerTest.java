@@ -0,0 +1,41 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdaptiveBatchSizerTest {
+
+	@Test
+	public void testFastBatchesGrowUpToDoubleSize() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(20, 500, 100, 10000, 20000);
+		assertEquals(100, sizer.nextBatchSize());
+		sizer.recordBatch(100, 1000, 1000);
+		assertEquals(200, sizer.nextBatchSize());
+		sizer.recordBatch(200, 2000, 2000);
+		assertEquals(400, sizer.nextBatchSize());
+		sizer.recordBatch(400, 4000, 4000);
+		assertEquals(500, sizer.nextBatchSize());
+	}
+
+	@Test
+	public void testSlowBatchesShrinkToMinimum() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(20, 500, 100, 10000, 20000);
+		sizer.recordBatch(100, 1000, 40000);
+		assertEquals(50, sizer.nextBatchSize());
+		sizer.recordBatch(50, 500, 20000);
+		assertEquals(25, sizer.nextBatchSize());
+		sizer.recordBatch(25, 250, 50000);
+		assertEquals(20, sizer.nextBatchSize());
+	}
+
+	@Test
+	public void testLargeConceptsLimitedByComponents() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(20, 500, 100, 10000, 20000);
+		sizer.recordBatch(100, 15000, 100);
+		assertEquals(133, sizer.nextBatchSize());
+	}
+}
@@ -8,6 +8,7 @@ import static org.junit.Assert.assertTrue;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import org.ihtsdo.otf.authoringtemplate.service.LexicalTemplateTransformService;
 import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
@@ -73,4 +74,31 @@ public class DescriptionTransformerTest {
 			assertEquals(inactivationReason, pojo.getInactivationIndicator());
 		}
 	}
+
+	@Test
+	public void testTransformConceptsWithSharedSlotValues() throws ServiceException {
+		ConceptTemplate conceptTemplate = new ConceptTemplate();
+		conceptTemplate.setConceptOutline(TestDataHelper.createConceptOutline());
+		LexicalTemplate lexical = new LexicalTemplate();
+		lexical.setName("substance");
+		lexical.setTakeFSNFromSlot("substance");
+		conceptTemplate.addLexicalTemplate(lexical);
+		Map<String, Set<DescriptionPojo>> slotValues = TestDataHelper.constructSlotDescriptionValuesMap(Collections.singletonMap("substance", "Almond"), null, DescriptionType.FSN);
+		// Picked out once as for a batch and used for every concept in it
+		Map<String, DescriptionPojo> slotFsnValueMap = Collections.singletonMap("substance", LexicalTemplateTransformService.getActiveFsn(slotValues.get("substance")));
+		Map<String, List<DescriptionPojo>> slotPtValueMap = Collections.singletonMap("substance", LexicalTemplateTransformService.getActivePreferredTerms(slotValues.get("substance")));
+
+		for (int i = 0; i < 2; i++) {
+			ConceptPojo conceptToTransform = TestDataHelper.createConceptPojo();
+			new DescriptionTransformer(conceptToTransform, conceptTemplate, slotFsnValueMap, slotPtValueMap, "Out_Of_Dated").transform();
+			List<String> activeFsns = conceptToTransform.getDescriptions().stream()
+					.filter(DescriptionPojo::isActive)
+					.filter(d -> DescriptionType.FSN.name().equals(d.getType()))
+					.map(DescriptionPojo::getTerm)
+					.collect(Collectors.toList());
+			assertEquals(Collections.singletonList("Allergy to almond (finding)"), activeFsns);
+		}
+		assertEquals("Almond", slotFsnValueMap.get("substance").getTerm());
+		assertTrue(slotFsnValueMap.get("substance").isActive());
+	}
 }
@@ -10,7 +10,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.IntStream;
 
+import org.ihtsdo.otf.authoringtemplate.service.TemplateUtil;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.AxiomPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
@@ -19,6 +21,7 @@ import org.snomed.authoringtemplate.domain.Axiom;
 import org.snomed.authoringtemplate.domain.CaseSignificance;
 import org.snomed.authoringtemplate.domain.ConceptMini;
 import org.snomed.authoringtemplate.domain.ConceptOutline;
+import org.snomed.authoringtemplate.domain.ConceptTemplate;
 import org.snomed.authoringtemplate.domain.Description;
 import org.snomed.authoringtemplate.domain.DescriptionType;
 import org.snomed.authoringtemplate.domain.Relationship;
@@ -251,4 +254,51 @@ public class TestDataHelper {
 		return results;
 	}
 
+	/**
+	 * Expands each row of slot values into a concept the way generation did before GenerationPlan,
+	 * resolving the slot positions by name for every relationship of every row.
+	 */
+	public static List<ConceptOutline> constructConceptOutlines(ConceptTemplate template, List<List<String>> slotColumnValues, List<String> slotNames) {
+		List<List<String>> slotValuesByRow = new ArrayList<>();
+		for (int i = 0; i < slotColumnValues.get(0).size(); i++) {
+			List<String> values = new ArrayList<>();
+			for (int k = 0; k < slotColumnValues.size(); k++) {
+				values.add(slotColumnValues.get(k).get(i));
+			}
+			slotValuesByRow.add(values);
+		}
+		List<ConceptOutline> generatedConcepts = new ArrayList<>();
+		IntStream.range(0, slotValuesByRow.size()).forEach(i -> generatedConcepts.add(constructConceptOutline(template, slotValuesByRow.get(i), slotNames)));
+		return generatedConcepts;
+	}
+
+	private static ConceptOutline constructConceptOutline(ConceptTemplate template, List<String> slotValues, List<String> slotNames) {
+		ConceptOutline conceptOutline = new ConceptOutline();
+		for (Axiom axiom : template.getConceptOutline().getClassAxioms()) {
+			List<Relationship> relationships = new ArrayList<>();
+			for (Relationship relationship : axiom.getRelationships()) {
+				SimpleSlot targetSlot = relationship.getTargetSlot();
+				if (targetSlot == null) {
+					relationships.add(relationship.clone());
+				}
+				if (targetSlot != null) {
+					String slotName = targetSlot.getSlotName();
+					int valueIndex;
+					if (slotName != null) {
+						valueIndex = slotNames.indexOf(slotName);
+					} else {
+						valueIndex = slotNames.indexOf(targetSlot.getSlotReference());
+					}
+					String slotValue = valueIndex == -1 ? "" : slotValues.get(valueIndex);
+					if (!slotValue.trim().isEmpty() || !TemplateUtil.isOptional(relationship)) {
+						relationships.add(relationship.clone().setTarget(new ConceptMini(slotValue)));
+					}
+				}
+			}
+			Axiom generated = new Axiom();
+			generated.setRelationships(relationships);
+			conceptOutline.addAxiom(generated);
+		}
+		return conceptOutline;
+	}
 }
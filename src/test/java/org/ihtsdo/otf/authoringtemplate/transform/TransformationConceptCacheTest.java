@@ -0,0 +1,84 @@
+package org.ihtsdo.otf.authoringtemplate.transform;
+
+import static org.ihtsdo.otf.authoringtemplate.service.Constants.PREFERRED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ihtsdo.otf.rest.client.RestClientException;
+import org.ihtsdo.otf.rest.client.terminologyserver.SnowOwlRestClient;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.ConceptPojo;
+import org.ihtsdo.otf.rest.client.terminologyserver.pojo.DescriptionPojo;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.snomed.authoringtemplate.domain.CaseSignificance;
+import org.snomed.authoringtemplate.domain.DescriptionType;
+
+@RunWith(JUnit4.class)
+public class TransformationConceptCacheTest {
+
+	@Test
+	public void testSlotValueTermsResolvedOnceAndShared() throws RestClientException {
+		SnowOwlRestClient client = mock(SnowOwlRestClient.class);
+		ConceptPojo almond = createConcept("256350002", createDescription("Almond (substance)", DescriptionType.FSN, true));
+		when(client.searchConcepts(anyString(), anyList())).thenReturn(Collections.singletonList(almond));
+
+		TransformationConceptCache cache = new TransformationConceptCache("MAIN");
+		cache.prefetchDescriptions(client, Arrays.asList("256350002", "256350002"));
+		cache.prefetchDescriptions(client, Collections.singletonList("256350002"));
+		verify(client, times(1)).searchConcepts("MAIN", Collections.singletonList("256350002"));
+
+		DescriptionPojo fsn = cache.getFsn("256350002");
+		assertEquals("Almond (substance)", fsn.getTerm());
+		assertSame(fsn, cache.getFsn("256350002"));
+		List<DescriptionPojo> preferredTerms = cache.getPreferredTerms("256350002");
+		assertEquals(1, preferredTerms.size());
+		assertSame(preferredTerms, cache.getPreferredTerms("256350002"));
+	}
+
+	@Test
+	public void testSlotValueWithoutActiveFsn() throws RestClientException {
+		SnowOwlRestClient client = mock(SnowOwlRestClient.class);
+		ConceptPojo almond = createConcept("256350002", createDescription("Almond (substance)", DescriptionType.FSN, false));
+		when(client.searchConcepts(anyString(), anyList())).thenReturn(Collections.singletonList(almond));
+
+		TransformationConceptCache cache = new TransformationConceptCache("MAIN");
+		cache.prefetchDescriptions(client, Collections.singletonList("256350002"));
+		assertNull(cache.getFsn("256350002"));
+		assertEquals("Almond", cache.getPreferredTerms("256350002").get(0).getTerm());
+	}
+
+	private ConceptPojo createConcept(String conceptId, DescriptionPojo fsn) {
+		ConceptPojo concept = new ConceptPojo();
+		concept.setConceptId(conceptId);
+		concept.setActive(true);
+		Set<DescriptionPojo> descriptions = new HashSet<>();
+		descriptions.add(fsn);
+		descriptions.add(createDescription("Almond", DescriptionType.SYNONYM, true));
+		concept.setDescriptions(descriptions);
+		return concept;
+	}
+
+	private DescriptionPojo createDescription(String term, DescriptionType type, boolean active) {
+		DescriptionPojo description = new DescriptionPojo();
+		description.setTerm(term);
+		description.setType(type.name());
+		description.setActive(active);
+		description.setCaseSignificance(CaseSignificance.CASE_INSENSITIVE.name());
+		description.setAcceptabilityMap(TestDataHelper.constructAcceptabilityMap(PREFERRED, PREFERRED));
+		return description;
+	}
+}
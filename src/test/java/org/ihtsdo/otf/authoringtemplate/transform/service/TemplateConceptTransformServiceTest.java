@@ -11,7 +11,11 @@ import org.ihtsdo.otf.authoringtemplate.service.exception.ServiceException;
 import org.ihtsdo.otf.authoringtemplate.transform.TemplateTransformRequest;
 import org.ihtsdo.otf.authoringtemplate.transform.TemplateTransformation;
 import org.ihtsdo.otf.authoringtemplate.transform.TestDataHelper;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationJournal;
 import org.ihtsdo.otf.authoringtemplate.transform.TransformationResult;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationResultFormat;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationResultPage;
+import org.ihtsdo.otf.authoringtemplate.transform.TransformationStatus;
 import org.ihtsdo.otf.rest.client.RestClientException;
 import org.ihtsdo.otf.rest.client.terminologyserver.SnowOwlRestClient;
 import org.ihtsdo.otf.rest.client.terminologyserver.pojo.*;
@@ -20,6 +24,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.OngoingStubbing;
 import org.snomed.authoringtemplate.domain.CaseSignificance;
 import org.snomed.authoringtemplate.domain.ConceptTemplate;
@@ -27,6 +32,7 @@ import org.snomed.authoringtemplate.domain.DescriptionType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -43,16 +49,25 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 public class TemplateConceptTransformServiceTest extends AbstractServiceTest {
 
+	// Allowable ranges of the fracture dislocation template's slots which are given two values by the test concept
+	private static final List<String> FRACTURE_RANGES_WITH_TWO_VALUES = Arrays.asList("<<72704001 |Fracture (morphologic abnormality)|",
+			"<<87642003 |Dislocation (morphologic abnormality)|", "<<272673000 |Bone structure (body structure)|", "<<39352004 |Joint structure (body structure)|");
+
 	@Autowired
 	private TemplateConceptTransformService transformService;
 
 	@Autowired
 	private JsonStore jsonStore;
+
+	@Autowired
+	private TemplateTransformationResultService resultService;
 	
 	private ConceptPojo conceptToTransform;
 	
@@ -86,6 +101,220 @@ public class TemplateConceptTransformServiceTest extends AbstractServiceTest {
 		assertNotNull(transformation);
 	}
 	
+	@Test
+	public void testResultsCombinedFromBatches() throws Exception {
+		TemplateTransformation transformation = new TemplateTransformation("MAIN", transformRequest);
+		transformation.setTotalBatches(2);
+		TransformationResult first = new TransformationResult();
+		first.addTransformedConcept(TestDataHelper.createConceptPojo());
+		first.setFailures(Collections.emptyMap());
+		resultService.writeBatchResult(transformation, 0, first);
+		TransformationResult second = new TransformationResult();
+		second.setFailures(Collections.singletonMap("712839001", "Failed to find concept"));
+		resultService.writeBatchResult(transformation, 1, second);
+		transformation.recordBatch(1, 0);
+		transformation.recordBatch(1, 1);
+		transformation.setStatus(TransformationStatus.COMPLETED_WITH_FAILURE);
+		resultService.update(transformation);
+
+		TemplateTransformation status = resultService.getTemplateTransformation(transformation.getTransformationId());
+		assertEquals(2, status.getCompletedBatches());
+		assertEquals(1, status.getFailedConcepts());
+		TransformationResult result = resultService.getResult(transformation.getTransformationId());
+		assertEquals(1, result.getConcepts().size());
+		assertEquals("Failed to find concept", result.getFailures().get("712839001"));
+	}
+
+	@Test
+	public void testEmptyTransformationHasEmptyResult() throws Exception {
+		mockTerminologyServerClient();
+		transformRequest.setConceptsToTransform(Collections.emptySet());
+		TemplateTransformation transformation = transformService.createTemplateTransformation("MAIN", transformRequest);
+		String transformationId = transformation.getTransformationId();
+		transformation.setStatus(TransformationStatus.QUEUED);
+		resultService.update(transformation);
+		transformService.transformAsynchronously(transformation, terminologyServerClient);
+
+		TemplateTransformation completed = waitForTransformation(transformationId);
+		assertEquals(TransformationStatus.COMPLETED, completed.getStatus());
+		assertEquals(0, completed.getTotalBatches());
+		TransformationResult result = resultService.getResult(transformationId);
+		assertTrue(result.getConcepts().isEmpty());
+		assertTrue(result.getFailures().isEmpty());
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		resultService.writeResult(transformationId, output);
+		assertEquals("{\"concepts\":[],\"failures\":{}}", new String(output.toByteArray(), UTF_8));
+		assertEquals(0, resultService.getResultPage(transformationId, 0, 10, false, null, true).getTotal());
+	}
+
+	private TemplateTransformation waitForTransformation(String transformationId) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			TemplateTransformation transformation = resultService.getTemplateTransformation(transformationId);
+			TransformationStatus status = transformation.getStatus();
+			if (TransformationStatus.QUEUED != status && TransformationStatus.RUNNING != status) {
+				return transformation;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				fail("Transformation " + transformationId + " didn't finish in time");
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	@Test
+	public void testCompressedLineDelimitedResults() throws Exception {
+		TemplateTransformation transformation = new TemplateTransformation("MAIN", transformRequest);
+		transformation.setResultFormat(TransformationResultFormat.NDJSON_GZIP);
+		transformation.setTotalBatches(2);
+		TransformationResult first = new TransformationResult();
+		first.addTransformedConcept(TestDataHelper.createConceptPojo());
+		first.addTransformedConcept(TestDataHelper.createConceptPojo());
+		first.setFailures(Collections.emptyMap());
+		resultService.writeBatchResult(transformation, 0, first);
+		TransformationResult second = new TransformationResult();
+		second.setFailures(Collections.singletonMap("712839001", "Failed to find concept"));
+		resultService.writeBatchResult(transformation, 1, second);
+		transformation.setStatus(TransformationStatus.COMPLETED_WITH_FAILURE);
+		resultService.update(transformation);
+
+		TransformationResult result = resultService.getResult(transformation.getTransformationId());
+		assertEquals(2, result.getConcepts().size());
+		assertEquals("Failed to find concept", result.getFailures().get("712839001"));
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		resultService.writeResult(transformation.getTransformationId(), output);
+		TransformationResult streamed = gson.fromJson(new String(output.toByteArray(), UTF_8), TransformationResult.class);
+		assertEquals(2, streamed.getConcepts().size());
+		assertEquals(result.getConcepts().get(0).getConceptId(), streamed.getConcepts().get(0).getConceptId());
+		assertEquals(1, streamed.getFailures().size());
+	}
+
+	@Test
+	public void testDuplicateFailureKeysKeepLastBatch() throws Exception {
+		TemplateTransformation transformation = new TemplateTransformation("MAIN", transformRequest);
+		transformation.setResultFormat(TransformationResultFormat.NDJSON);
+		transformation.setTotalBatches(2);
+		for (int batch = 0; batch < 2; batch++) {
+			TransformationResult result = new TransformationResult();
+			result.setFailures(Collections.singletonMap("Error", "Failed to load batch " + batch));
+			resultService.writeBatchResult(transformation, batch, result);
+		}
+		transformation.setStatus(TransformationStatus.COMPLETED_WITH_FAILURE);
+		resultService.update(transformation);
+		String transformationId = transformation.getTransformationId();
+
+		assertEquals("Failed to load batch 1", resultService.getResult(transformationId).getFailures().get("Error"));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		resultService.writeResult(transformationId, output);
+		TransformationResult streamed = gson.fromJson(new String(output.toByteArray(), UTF_8), TransformationResult.class);
+		assertEquals(Collections.singletonMap("Error", "Failed to load batch 1"), streamed.getFailures());
+		TransformationResultPage page = resultService.getResultPage(transformationId, 0, 10, true, null, false);
+		assertEquals("Failed to load batch 1", page.getFailures().get("Error"));
+	}
+
+	@Test
+	public void testResultPagesFilteredUsingIndex() throws Exception {
+		TemplateTransformation transformation = new TemplateTransformation("MAIN", transformRequest);
+		transformation.setResultFormat(TransformationResultFormat.NDJSON);
+		transformation.setTotalBatches(2);
+		for (int batch = 0; batch < 2; batch++) {
+			TransformationResult result = new TransformationResult();
+			for (int i = 0; i < 3; i++) {
+				ConceptPojo concept = TestDataHelper.createConceptPojo();
+				concept.setConceptId(batch + "00" + i);
+				result.addTransformedConcept(concept);
+			}
+			result.getDescriptionsChanged().add(batch + "001");
+			result.setFailures(Collections.singletonMap(batch + "009", "Failed to find concept"));
+			resultService.writeBatchResult(transformation, batch, result);
+		}
+		transformation.setStatus(TransformationStatus.COMPLETED_WITH_FAILURE);
+		resultService.update(transformation);
+		String transformationId = transformation.getTransformationId();
+
+		TransformationResultPage page = resultService.getResultPage(transformationId, 2, 2, false, null, false);
+		assertEquals(6, page.getTotal());
+		assertEquals(Arrays.asList("0002", "1000"), page.getConcepts().stream().map(ConceptPojo::getConceptId).collect(Collectors.toList()));
+		assertTrue(page.getFailures().isEmpty());
+
+		page = resultService.getResultPage(transformationId, 0, 10, false, null, true);
+		assertEquals(Arrays.asList("0001", "1001"), page.getConcepts().stream().map(ConceptPojo::getConceptId).collect(Collectors.toList()));
+
+		page = resultService.getResultPage(transformationId, 0, 10, false, new HashSet<>(Arrays.asList("1002", "0009")), false);
+		assertEquals(1, page.getTotal());
+		assertEquals("1002", page.getConcepts().get(0).getConceptId());
+		assertEquals(Collections.singleton("0009"), page.getFailures().keySet());
+
+		long hits = resultService.getSortedFailuresCacheStats().hitCount();
+		page = resultService.getResultPage(transformationId, 1, 10, true, null, false);
+		assertEquals(2, page.getTotal());
+		assertTrue(page.getConcepts().isEmpty());
+		assertEquals(Collections.singleton("1009"), page.getFailures().keySet());
+		// The failures read for the previous page are reused
+		assertEquals(hits + 1, resultService.getSortedFailuresCacheStats().hitCount());
+	}
+
+	@Test
+	public void testRunningTransformationMarkedInterruptedAndResumable() throws Exception {
+		transformRequest.setConceptsToTransform(new HashSet<>(Arrays.asList("1", "2", "3")));
+		TemplateTransformation transformation = new TemplateTransformation("MAIN", transformRequest);
+		TransformationJournal journal = new TransformationJournal(Arrays.asList(Arrays.asList("1", "2"), Collections.singletonList("3")));
+		journal.recordCompleted(0, 1);
+		resultService.writeJournal(transformation, journal);
+		transformation.setStatus(TransformationStatus.RUNNING);
+		resultService.update(transformation);
+		resultService.setActive(transformation.getTransformationId(), true);
+
+		transformService.markInterruptedTransformations();
+		TemplateTransformation interrupted = resultService.getTemplateTransformation(transformation.getTransformationId());
+		assertEquals(TransformationStatus.INTERRUPTED, interrupted.getStatus());
+
+		TemplateTransformation queued = transformService.prepareResume(transformation.getTransformationId());
+		assertEquals(TransformationStatus.QUEUED, queued.getStatus());
+		resultService.getJournal(transformation.getTransformationId()).restoreProgress(queued);
+		assertEquals(1, queued.getCompletedBatches());
+		assertEquals(2, queued.getProcessedConcepts());
+		assertEquals(1, queued.getFailedConcepts());
+		resultService.setActive(transformation.getTransformationId(), false);
+	}
+
+	@Test
+	public void testResumeRunsOnlyBatchesNotCompleted() throws Exception {
+		mockTerminologyServerClient();
+		transformRequest.setConceptsToTransform(new LinkedHashSet<>(Arrays.asList("1", "2", "3", "4")));
+		TemplateTransformation transformation = new TemplateTransformation("MAIN", transformRequest);
+		String transformationId = transformation.getTransformationId();
+		transformation.setTotalConcepts(4);
+		transformation.setResultFormat(resultService.getResultFormat());
+		TransformationResult completed = new TransformationResult();
+		completed.setFailures(Collections.emptyMap());
+		resultService.writeBatchResult(transformation, 0, completed);
+		// Batch 0 completed, batch 1 was formed but not completed and concept 4 wasn't batched before the interruption
+		TransformationJournal journal = new TransformationJournal(Arrays.asList(Arrays.asList("1", "2"), Collections.singletonList("3")));
+		journal.recordCompleted(0, 0);
+		resultService.writeJournal(transformation, journal);
+		transformation.setStatus(TransformationStatus.INTERRUPTED);
+		resultService.update(transformation);
+		resultService.setActive(transformationId, true);
+
+		TemplateTransformation queued = transformService.prepareResume(transformationId);
+		transformService.resumeAsynchronously(queued, terminologyServerClient);
+		TemplateTransformation resumed = waitForTransformation(transformationId);
+
+		// The concepts of the remaining batches aren't found on the branch so fail
+		assertEquals(TransformationStatus.COMPLETED_WITH_FAILURE, resumed.getStatus());
+		assertEquals(3, resumed.getCompletedBatches());
+		assertEquals(4, resumed.getProcessedConcepts());
+		assertEquals(2, resumed.getFailedConcepts());
+		ArgumentCaptor<List<String>> requested = ArgumentCaptor.forClass(List.class);
+		verify(terminologyServerClient, times(2)).searchConcepts(anyString(), requested.capture());
+		Set<String> fetched = requested.getAllValues().stream().flatMap(List::stream).collect(Collectors.toSet());
+		assertEquals(new HashSet<>(Arrays.asList("3", "4")), fetched);
+		assertEquals(new HashSet<>(Arrays.asList("3", "4")), resultService.getResult(transformationId).getFailures().keySet());
+	}
+
 	@Test
 	public void testValidateWithSuccess() {
 		try {
@@ -352,6 +581,29 @@ public class TemplateConceptTransformServiceTest extends AbstractServiceTest {
 		verifyTransformation(result);
 	}
 	
+	@Test
+	public void testSlotValueWithoutActiveFsn() throws Exception {
+		initTestConcepts("Allergy_to_Aluminium_Concept_WithAxiomOnly.json", "Allergy_to_Aluminium_Concept_WithAxiomOnly_Transformed.json");
+		mockTerminologyServerClient();
+		mockSearchConcepts(true);
+		List<ConceptPojo> slotValues = new ArrayList<>();
+		for (AxiomPojo axiom : conceptToTransform.getClassAxioms()) {
+			for (RelationshipPojo relationship : axiom.getRelationships()) {
+				ConceptPojo slotValue = constructConceptPojo(relationship.getTarget());
+				slotValue.getDescriptions().stream().filter(d -> DescriptionType.FSN.name().equals(d.getType())).forEach(d -> d.setActive(false));
+				slotValues.add(slotValue);
+			}
+		}
+		when(terminologyServerClient.searchConcepts(anyString(), any())).thenReturn(slotValues);
+
+		try {
+			transformService.transformConcept("MAIN", new TemplateTransformRequest(null, destination), conceptToTransform, terminologyServerClient);
+			fail("Transformation should fail when a slot value has no active FSN");
+		} catch (ServiceException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("has no active FSN"));
+		}
+	}
+
 	@Test
 	public void testMultipleSlotsWithinTheSameAttributeType() throws Exception {
 		String tempalteName = "Fracture dislocation of [body structure] (disorder)";
@@ -371,6 +623,79 @@ public class TemplateConceptTransformServiceTest extends AbstractServiceTest {
 		verifyTransformation(result);
 	}
 	
+	@Test
+	public void testSlotRangesValidatedOncePerBatch() throws Exception {
+		assertEquals(3, transformBatchSharingSlotValues(3).size());
+
+		// The concepts share their slot values so each range is queried once for the batch rather than once per concept
+		verify(terminologyServerClient, times(FRACTURE_RANGES_WITH_TWO_VALUES.size())).eclQuery(anyString(), anyString(), anyInt());
+		for (String rangeEcl : FRACTURE_RANGES_WITH_TWO_VALUES) {
+			verify(terminologyServerClient, times(1)).eclQuery(anyString(), contains(rangeEcl), anyInt());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSlotValueDescriptionsFetchedOncePerBatch() throws Exception {
+		assertEquals(3, transformBatchSharingSlotValues(3).size());
+
+		// One request loads the batch and one fetches the descriptions of all its slot values
+		ArgumentCaptor<List<String>> requested = ArgumentCaptor.forClass(List.class);
+		verify(terminologyServerClient, times(2)).searchConcepts(anyString(), requested.capture());
+		assertEquals(new HashSet<>(Arrays.asList("263078000", "263078001", "263078002")), new HashSet<>(requested.getAllValues().get(0)));
+		assertEquals(Arrays.asList("16953009", "305016004", "72704001", "773760007", "87642003"),
+				requested.getAllValues().get(1).stream().sorted().collect(Collectors.toList()));
+	}
+
+	/**
+	 * Transforms copies of the fracture dislocation test concept in one batch, so all the concepts have the same slot values.
+	 */
+	private List<ConceptPojo> transformBatchSharingSlotValues(int conceptCount) throws Exception {
+		String templateName = "Fracture dislocation of [body structure] (disorder)";
+		setUpTemplates(templateName);
+		initTestConcepts("Fracture_dislocation_of_elbow_joint_New_Concept.json", "Fracture_dislocation_of_elbow_joint_transformed.json");
+		mockSearchAttributeValuesWithinRange(FRACTURE_RANGES_WITH_TWO_VALUES.get(0), Collections.singletonList("72704001"));
+		mockSearchAttributeValuesWithinRange(FRACTURE_RANGES_WITH_TWO_VALUES.get(1), Collections.singletonList("87642003"));
+		mockSearchAttributeValuesWithinRange(FRACTURE_RANGES_WITH_TWO_VALUES.get(2), Collections.singletonList("305016004"));
+		mockSearchAttributeValuesWithinRange(FRACTURE_RANGES_WITH_TWO_VALUES.get(3), Collections.singletonList("16953009"));
+		List<ConceptPojo> batch = new ArrayList<>();
+		for (int i = 0; i < conceptCount; i++) {
+			ConceptPojo concept = readConcept("Fracture_dislocation_of_elbow_joint_New_Concept.json");
+			concept.setConceptId("26307800" + i);
+			batch.add(concept);
+		}
+		mockSearchConceptsInBatch(batch);
+
+		TemplateTransformRequest transformRequest = new TemplateTransformRequest(templateName, templateName);
+		transformRequest.setConceptsToTransform(batch.stream().map(ConceptPojo::getConceptId).collect(Collectors.toSet()));
+		List<Future<TransformationResult>> results = transformService.transform(new TemplateTransformation("MAIN/test", transformRequest), terminologyServerClient);
+		return getTransformationResults(results);
+	}
+
+	/**
+	 * Returns the batch concepts when they are loaded and the slot value concepts of the test concept when their descriptions are fetched.
+	 */
+	private void mockSearchConceptsInBatch(List<ConceptPojo> batch) throws RestClientException {
+		mockSearchConcepts(true);
+		Map<String, ConceptPojo> conceptsById = new HashMap<>();
+		batch.forEach(concept -> conceptsById.put(concept.getConceptId(), concept));
+		for (AxiomPojo axiom : conceptToTransform.getClassAxioms()) {
+			for (RelationshipPojo relationship : axiom.getRelationships()) {
+				conceptsById.putIfAbsent(relationship.getTarget().getConceptId(), constructConceptPojo(relationship.getTarget()));
+			}
+		}
+		when(terminologyServerClient.searchConcepts(anyString(), any())).thenAnswer(invocation -> {
+			Collection<String> conceptIds = invocation.getArgument(1);
+			return conceptIds.stream().filter(conceptsById::containsKey).map(conceptsById::get).collect(Collectors.toList());
+		});
+	}
+
+	private ConceptPojo readConcept(String conceptJson) throws IOException {
+		try (Reader reader = new InputStreamReader(getClass().getResourceAsStream(conceptJson), UTF_8)) {
+			return gson.fromJson(reader, ConceptPojo.class);
+		}
+	}
+
 	private void mockSearchAttributeValuesWithinRange(String rangeEcl, List<String> conceptIds) throws RestClientException {
 		when(terminologyServerClient.eclQuery(anyString(), contains(rangeEcl), anyInt()))
 		.thenReturn(new HashSet<String>(conceptIds));
@@ -0,0 +1,125 @@
+package org.ihtsdo.otf.authoringtemplate.transform.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@RunWith(JUnit4.class)
+public class TransformationExecutorTest {
+
+	private TransformationExecutor transformationExecutor;
+
+	private final ExecutorService submitter = Executors.newSingleThreadExecutor();
+
+	@After
+	public void tearDown() throws InterruptedException {
+		submitter.shutdownNow();
+		if (transformationExecutor != null && !transformationExecutor.isShutdown()) {
+			transformationExecutor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFullQueueRunsBatchOnCallerThread() throws Exception {
+		transformationExecutor = createExecutor(1, 1, 10, 5);
+		Semaphore permits = transformationExecutor.newTransformationPermits();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<String> running = transformationExecutor.submit(permits, () -> {
+			started.countDown();
+			release.await();
+			return Thread.currentThread().getName();
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Future<String> queued = transformationExecutor.submit(permits, () -> Thread.currentThread().getName());
+		Future<String> callerRun = transformationExecutor.submit(permits, () -> Thread.currentThread().getName());
+
+		assertTrue(callerRun.isDone());
+		assertEquals(Thread.currentThread().getName(), callerRun.get());
+		assertFalse(queued.isDone());
+		release.countDown();
+		assertTrue(running.get(5, TimeUnit.SECONDS).startsWith("transformation-"));
+		assertTrue(queued.get(5, TimeUnit.SECONDS).startsWith("transformation-"));
+		assertEquals(10, permits.availablePermits());
+	}
+
+	@Test
+	public void testTransformationLimitedToPermittedBatches() throws Exception {
+		transformationExecutor = createExecutor(4, 10, 2, 5);
+		Semaphore permits = transformationExecutor.newTransformationPermits();
+		CountDownLatch release = new CountDownLatch(1);
+		Future<Boolean> first = transformationExecutor.submit(permits, () -> release.await(5, TimeUnit.SECONDS));
+		Future<Boolean> second = transformationExecutor.submit(permits, () -> release.await(5, TimeUnit.SECONDS));
+		assertEquals(0, permits.availablePermits());
+
+		// The pool has idle threads, but the third batch can't be submitted until one of the first two finishes
+		Future<Future<Boolean>> third = submitter.submit(() -> transformationExecutor.submit(permits, () -> true));
+		try {
+			third.get(200, TimeUnit.MILLISECONDS);
+			fail("Third batch shouldn't be submitted while two are in flight");
+		} catch (TimeoutException e) {
+			// Expected
+		}
+		release.countDown();
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+		assertTrue(second.get(5, TimeUnit.SECONDS));
+		assertTrue(third.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+		assertEquals(2, permits.availablePermits());
+	}
+
+	@Test
+	public void testShutdownWaitsForRunningBatches() throws Exception {
+		transformationExecutor = createExecutor(1, 10, 5, 5);
+		Semaphore permits = transformationExecutor.newTransformationPermits();
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicBoolean completed = new AtomicBoolean();
+		Future<Boolean> running = transformationExecutor.submit(permits, () -> {
+			started.countDown();
+			Thread.sleep(300);
+			completed.set(true);
+			return true;
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		transformationExecutor.shutdown();
+		assertTrue(transformationExecutor.isShutdown());
+		assertTrue(completed.get());
+		assertTrue(running.get());
+		try {
+			transformationExecutor.submit(permits, () -> true);
+			fail("Batches shouldn't be accepted after shutdown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(5, permits.availablePermits());
+		}
+	}
+
+	private TransformationExecutor createExecutor(int threads, int queueCapacity, int maxBatchesPerTransformation, long shutdownTimeoutSeconds) {
+		TransformationExecutor executor = new TransformationExecutor();
+		ReflectionTestUtils.setField(executor, "threads", threads);
+		ReflectionTestUtils.setField(executor, "queueCapacity", queueCapacity);
+		ReflectionTestUtils.setField(executor, "maxBatchesPerTransformation", maxBatchesPerTransformation);
+		ReflectionTestUtils.setField(executor, "shutdownTimeoutSeconds", shutdownTimeoutSeconds);
+		ReflectionTestUtils.setField(executor, "meterRegistry", new SimpleMeterRegistry());
+		executor.init();
+		return executor;
+	}
+}